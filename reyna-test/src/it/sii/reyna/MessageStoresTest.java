@@ -0,0 +1,116 @@
+package it.sii.reyna;
+
+import android.content.Context;
+import it.sii.reyna.log.LogMessageStore;
+import it.sii.reyna.services.StoreService;
+import it.sii.reyna.system.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class MessageStoresTest {
+
+    private Context context;
+
+    @Before
+    public void setup() {
+        this.context = Robolectric.application.getApplicationContext();
+    }
+
+    @After
+    public void tearDown() {
+        StoreService.setStorageEngine(this.context, MessageStores.SQLITE);
+        MessageStores.open(this.context).close();
+    }
+
+    @Test
+    public void switchingEngineShouldMoveTheQueue() throws Exception {
+        Repository repository = Repository.open(this.context);
+        try {
+            repository.insert(new Message(new URI("https://www.google.com"), "first"));
+            repository.insert(new Message(new URI("https://www.google.com"), "second"));
+        } finally {
+            repository.close();
+        }
+
+        StoreService.setStorageEngine(this.context, MessageStores.SEGMENTED_LOG);
+        IMessageStore store = MessageStores.open(this.context);
+        try {
+            assertTrue(store instanceof LogMessageStore);
+            List<Message> messages = store.getNextBatch(10);
+            assertEquals(2, messages.size());
+            assertEquals("first", messages.get(0).getBody());
+            assertEquals("second", messages.get(1).getBody());
+            store.deleteAll(new long[]{messages.get(0).getId(), messages.get(1).getId()});
+        } finally {
+            store.close();
+        }
+
+        repository = Repository.open(this.context);
+        try {
+            assertEquals(0, repository.getAvailableMessagesCount());
+        } finally {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void leasedMessagesShouldMoveToo() throws Exception {
+        Repository repository = Repository.open(this.context);
+        try {
+            repository.insert(new Message(new URI("https://www.google.com"), "leased"));
+            repository.insert(new Message(new URI("https://www.google.com"), "free"));
+            assertEquals(1, repository.claim("worker", 1, Long.MAX_VALUE, System.currentTimeMillis(),
+                    TimeUnit.HOURS.toMillis(1)).size());
+        } finally {
+            repository.close();
+        }
+
+        StoreService.setStorageEngine(this.context, MessageStores.SEGMENTED_LOG);
+        IMessageStore store = MessageStores.open(this.context);
+        try {
+            List<Message> messages = store.getNextBatch(10);
+            assertEquals(2, messages.size());
+            assertEquals("leased", messages.get(0).getBody());
+            store.deleteAll(new long[]{messages.get(0).getId(), messages.get(1).getId()});
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void switchingBackFromTheSharedDatabaseShouldKeepKeyedMessages() throws Exception {
+        // held open, so that the partitioned store uses reyna.db in place
+        Repository repository = Repository.open(this.context);
+        try {
+            Message keyed = new Message(new URI("https://www.google.com"), "keyed");
+            keyed.setIdempotencyKey("key");
+            repository.insert(keyed);
+
+            StoreService.setStorageEngine(this.context, MessageStores.PARTITIONED_SQLITE);
+            MessageStores.open(this.context).close();
+            StoreService.setStorageEngine(this.context, MessageStores.SQLITE);
+            MessageStores.open(this.context).close();
+
+            List<Message> messages = repository.getNextBatch(10);
+            assertEquals(1, messages.size());
+            assertEquals("keyed", messages.get(0).getBody());
+            assertEquals("key", messages.get(0).getIdempotencyKey());
+            repository.delete(messages.get(0));
+        } finally {
+            repository.close();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package it.sii.reyna;
+
+import android.content.Context;
+import it.sii.reyna.system.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class PartitionedRepositoryTest {
+
+    // every message fills a partition, so each enqueue after the first starts a new one
+    private static final long PARTITION_BYTES = 100;
+
+    private Context context;
+
+    private PartitionedRepository repository;
+
+    @Before
+    public void setup() {
+        this.context = Robolectric.application.getApplicationContext();
+        this.repository = new PartitionedRepository(this.context, PARTITION_BYTES, Long.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() {
+        this.repository.close();
+    }
+
+    @Test
+    public void fullPartitionShouldRollOverToANewFile() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            this.repository.insert(new Message(new URI("https://www.google.com"), body(i, 200)));
+        }
+
+        assertEquals(3, this.repository.getPartitionCount());
+        List<Message> messages = this.repository.getNextBatch(10);
+        assertEquals(3, messages.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(body(i, 200), messages.get(i).getBody());
+            assertEquals(i + 1, messages.get(i).getId() >>> 40);
+        }
+    }
+
+    @Test
+    public void readsShouldMergePartitionsInQueueOrder() throws Exception {
+        this.repository.insert(new Message(new URI("https://www.google.com"), body(0, 200)));
+        Message high = new Message(new URI("https://www.google.com"), body(1, 200));
+        high.setPriority(Message.PRIORITY_HIGH);
+        this.repository.insert(high);
+        this.repository.insert(new Message(new URI("https://www.google.com"), body(2, 200)));
+
+        List<Message> first = this.repository.getNextBatchAfter(null, 2, Long.MAX_VALUE);
+        List<Message> second = this.repository.getNextBatchAfter(QueuePosition.after(null, first), 2, Long.MAX_VALUE);
+
+        assertEquals(body(1, 200), first.get(0).getBody());
+        assertEquals(body(0, 200), first.get(1).getBody());
+        assertEquals(1, second.size());
+        assertEquals(body(2, 200), second.get(0).getBody());
+    }
+
+    @Test
+    public void compactShouldDropDrainedPartitions() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            this.repository.insert(new Message(new URI("https://www.google.com"), body(i, 200)));
+        }
+        List<Message> messages = this.repository.getNextBatch(10);
+
+        this.repository.deleteAll(new long[]{messages.get(0).getId(), messages.get(1).getId()});
+        this.repository.compact();
+
+        assertEquals(1, this.repository.getPartitionCount());
+        assertEquals(1, this.repository.getAvailableMessagesCount());
+        assertEquals(messages.get(2).getId(), this.repository.getNext().getId());
+    }
+
+    @Test
+    public void shrinkShouldDropWholeOldestPartitions() throws Exception {
+        this.repository.setBodyCompression(false);
+        for (int i = 0; i < 4; i++) {
+            this.repository.insert(new Message(new URI("https://www.google.com"), body(i, 200 * 1024)));
+        }
+        String[] before = this.context.databaseList();
+
+        this.repository.shrinkDb(720 * 1024);
+
+        assertEquals(2, this.repository.getPartitionCount());
+        assertEquals(2, this.repository.getAvailableMessagesCount());
+        assertEquals(body(2, 200 * 1024), this.repository.getNext().getBody());
+        assertTrue(this.context.databaseList().length < before.length);
+    }
+
+    @Test
+    public void insertOverTheLimitShouldDropOldestPartitions() throws Exception {
+        this.repository.setBodyCompression(false);
+        for (int i = 0; i < 3; i++) {
+            this.repository.insert(new Message(new URI("https://www.google.com"), body(i, 200 * 1024)));
+        }
+
+        this.repository.insert(new Message(new URI("https://www.google.com"), body(3, 200 * 1024)), 900 * 1024);
+
+        assertEquals(2, this.repository.getAvailableMessagesCount());
+        assertEquals(body(2, 200 * 1024), this.repository.getNext().getBody());
+    }
+
+    @Test
+    public void idempotencyKeyShouldBeCheckedAcrossPartitions() throws Exception {
+        Message message = new Message(new URI("https://www.google.com"), body(0, 200));
+        message.setIdempotencyKey("key");
+        this.repository.insert(message);
+
+        Message duplicate = new Message(new URI("https://www.google.com"), body(1, 200));
+        duplicate.setIdempotencyKey("key");
+        this.repository.insert(duplicate);
+
+        assertEquals(1, this.repository.getAvailableMessagesCount());
+        assertEquals(body(0, 200), this.repository.getNext().getBody());
+    }
+
+    @Test
+    public void coalesceKeyShouldReplaceAcrossPartitions() throws Exception {
+        Message message = new Message(new URI("https://www.google.com"), body(0, 200));
+        message.setCoalesceKey("key");
+        this.repository.insert(message);
+
+        Message latest = new Message(new URI("https://www.google.com"), body(1, 200));
+        latest.setCoalesceKey("key");
+        this.repository.insert(latest);
+
+        assertEquals(1, this.repository.getAvailableMessagesCount());
+        assertEquals(body(1, 200), this.repository.getNext().getBody());
+    }
+
+    @Test
+    public void existingDatabaseShouldBeTakenOverAsFirstPartition() throws Exception {
+        this.repository.close();
+        Repository legacy = Repository.open(this.context);
+        legacy.insert(new Message(new URI("https://www.google.com"), "legacy"));
+        legacy.close();
+
+        this.repository = new PartitionedRepository(this.context, PARTITION_BYTES, Long.MAX_VALUE);
+        this.repository.insert(new Message(new URI("https://www.google.com"), "new"));
+
+        List<Message> messages = this.repository.getNextBatch(10);
+        assertEquals(2, messages.size());
+        assertEquals("legacy", messages.get(0).getBody());
+        assertEquals(0, messages.get(0).getId() >>> 40);
+        assertEquals("new", messages.get(1).getBody());
+        assertFalse(Arrays.asList(this.context.databaseList()).contains("reyna.db"));
+    }
+
+    @Test
+    public void takenOverDatabaseShouldKeepItsAgeAcrossReopening() throws Exception {
+        this.repository.close();
+        Repository legacy = Repository.open(this.context);
+        legacy.insert(new Message(new URI("https://www.google.com"), "legacy"));
+        legacy.close();
+
+        this.repository = new PartitionedRepository(this.context, Long.MAX_VALUE, Long.MAX_VALUE);
+        this.repository.close();
+        Thread.sleep(10);
+        this.repository = new PartitionedRepository(this.context, Long.MAX_VALUE, 5);
+        this.repository.insert(new Message(new URI("https://www.google.com"), "new"));
+
+        assertEquals(2, this.repository.getPartitionCount());
+    }
+
+    @Test
+    public void sharedDatabaseShouldNotBeDroppedWhileOpen() throws Exception {
+        this.repository.close();
+        Repository legacy = Repository.open(this.context);
+        legacy.insert(new Message(new URI("https://www.google.com"), "legacy"));
+        try {
+            this.repository = new PartitionedRepository(this.context, PARTITION_BYTES, Long.MAX_VALUE);
+            this.repository.insert(new Message(new URI("https://www.google.com"), "new"));
+            this.repository.delete(this.repository.getNext());
+
+            this.repository.compact();
+            this.repository.shrinkDb(0);
+
+            assertTrue(Arrays.asList(this.context.databaseList()).contains("reyna.db"));
+            legacy.insert(new Message(new URI("https://www.google.com"), "still open"));
+            assertEquals("still open", legacy.getNext().getBody());
+        } finally {
+            legacy.close();
+        }
+    }
+
+    private static String body(int index, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        builder.append(index).append(':');
+        while (builder.length() < length) {
+            builder.append('x');
+        }
+        return builder.toString();
+    }
+}
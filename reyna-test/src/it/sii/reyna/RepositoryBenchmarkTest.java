@@ -0,0 +1,216 @@
+package it.sii.reyna;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import it.sii.reyna.system.BodyCodec;
+import it.sii.reyna.system.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Micro-benchmark of the hot repository statements: the path the repository used to take, with
+ * ContentValues maps and SQL concatenated with literal ids, which the connection has to compile
+ * anew for every id, against the statement compiled once and rebound, as it does now. Both
+ * variants run each operation in a transaction of its own. Timings are logged per operation;
+ * the assertions only check that both variants did the same work.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class RepositoryBenchmarkTest {
+
+    private static final String TAG = "it.sii.reyna.RepositoryBenchmarkTest";
+
+    private static final int OPERATIONS = 2000;
+
+    private Repository repository;
+
+    private SQLiteDatabase db;
+
+    @Before
+    public void setup() {
+        Context context = Robolectric.application.getApplicationContext();
+        this.repository = Repository.open(context);
+        this.db = this.repository.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        this.repository.close();
+    }
+
+    @Test
+    public void insertContentValuesVersusCompiled() throws Exception {
+        long endpointId = this.endpointId("https://www.google.com");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            this.db.beginTransactionNonExclusive();
+            try {
+                ContentValues values = new ContentValues();
+                values.put("endpoint_id", endpointId);
+                values.put("body", "body");
+                values.put("codec", BodyCodec.PLAIN);
+                values.putNull("credential_id");
+                values.put("tries_left", 3);
+                values.putNull("headers");
+                values.put("size", 4);
+                values.put("priority", 0);
+                values.putNull("expires_at");
+                values.putNull("idempotency_key");
+                values.putNull("coalesce_key");
+                this.db.insert("Message", null, values);
+                this.db.setTransactionSuccessful();
+            } finally {
+                this.db.endTransaction();
+            }
+        }
+        long contentValues = System.nanoTime() - start;
+
+        SQLiteStatement insert = this.db.compileStatement(RepositoryStatements.INSERT);
+        start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            this.db.beginTransactionNonExclusive();
+            try {
+                insert.bindLong(1, endpointId);
+                insert.bindString(2, "body");
+                insert.bindLong(3, BodyCodec.PLAIN);
+                insert.bindNull(4);
+                insert.bindLong(5, 3);
+                insert.bindNull(6);
+                insert.bindLong(7, 4);
+                insert.bindLong(8, 0);
+                insert.bindNull(9);
+                insert.bindNull(10);
+                insert.bindNull(11);
+                insert.executeInsert();
+                this.db.setTransactionSuccessful();
+            } finally {
+                this.db.endTransaction();
+            }
+        }
+        long compiled = System.nanoTime() - start;
+        insert.close();
+
+        report("insert", "ContentValues", contentValues, compiled);
+        assertEquals(2 * OPERATIONS, DatabaseUtils.queryNumEntries(this.db, "Message"));
+    }
+
+    @Test
+    public void deleteConcatenatedVersusCompiled() throws Exception {
+        List<Long> ids = this.insertMessages(2 * OPERATIONS, 3);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            this.db.beginTransactionNonExclusive();
+            try {
+                this.db.execSQL("delete from Message where id = " + ids.get(i));
+                this.db.setTransactionSuccessful();
+            } finally {
+                this.db.endTransaction();
+            }
+        }
+        long concatenated = System.nanoTime() - start;
+
+        SQLiteStatement delete = this.db.compileStatement(RepositoryStatements.DELETE_BY_ID);
+        start = System.nanoTime();
+        for (int i = OPERATIONS; i < 2 * OPERATIONS; i++) {
+            this.db.beginTransactionNonExclusive();
+            try {
+                delete.bindLong(1, ids.get(i));
+                delete.executeUpdateDelete();
+                this.db.setTransactionSuccessful();
+            } finally {
+                this.db.endTransaction();
+            }
+        }
+        long compiled = System.nanoTime() - start;
+        delete.close();
+
+        report("delete", "concatenated", concatenated, compiled);
+        assertEquals(0, DatabaseUtils.queryNumEntries(this.db, "Message"));
+    }
+
+    @Test
+    public void decrementTriesContentValuesVersusCompiled() throws Exception {
+        long id = this.insertMessages(1, 4 * OPERATIONS).get(0);
+        int triesLeft = 4 * OPERATIONS;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            triesLeft--;
+            this.db.beginTransactionNonExclusive();
+            try {
+                ContentValues values = new ContentValues();
+                values.put("tries_left", triesLeft);
+                this.db.update("Message", values, "id = " + id, null);
+                this.db.setTransactionSuccessful();
+            } finally {
+                this.db.endTransaction();
+            }
+        }
+        long contentValues = System.nanoTime() - start;
+
+        SQLiteStatement update = this.db.compileStatement(RepositoryStatements.UPDATE_TRIES_LEFT);
+        start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            triesLeft--;
+            this.db.beginTransactionNonExclusive();
+            try {
+                update.bindLong(1, triesLeft);
+                update.bindLong(2, id);
+                update.executeUpdateDelete();
+                this.db.setTransactionSuccessful();
+            } finally {
+                this.db.endTransaction();
+            }
+        }
+        long compiled = System.nanoTime() - start;
+        update.close();
+
+        report("decrementMessageTries", "ContentValues", contentValues, compiled);
+        assertEquals(2 * OPERATIONS, DatabaseUtils.longForQuery(this.db,
+                "select tries_left from Message where id = ?", new String[]{Long.toString(id)}));
+    }
+
+    private long endpointId(String url) {
+        ContentValues endpoint = new ContentValues();
+        endpoint.put("url", url);
+        this.db.insertWithOnConflict("Endpoint", null, endpoint, SQLiteDatabase.CONFLICT_IGNORE);
+        return DatabaseUtils.longForQuery(this.db, "select id from Endpoint where url = ?", new String[]{url});
+    }
+
+    private List<Long> insertMessages(int count, int triesLeft) throws Exception {
+        for (int i = 0; i < count; i++) {
+            Message message = new Message(new URI("https://www.google.com"), "body");
+            message.setNumberOfTries(triesLeft);
+            this.repository.insert(message);
+        }
+
+        List<Long> ids = new ArrayList<Long>();
+        for (Message message : this.repository.getNextBatch(count)) {
+            ids.add(message.getId());
+        }
+        assertEquals(count, ids.size());
+        return ids;
+    }
+
+    private static void report(String operation, String baseline, long baselineNanos, long compiledNanos) {
+        Log.i(TAG, String.format("%s: %s %.1f us/op, compiled %.1f us/op",
+                operation, baseline, baselineNanos / 1000.0 / OPERATIONS, compiledNanos / 1000.0 / OPERATIONS));
+    }
+}
@@ -0,0 +1,298 @@
+package it.sii.reyna;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import it.sii.reyna.system.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parallel producers, a draining consumer and background maintenance against the shared
+ * repository: every message must be drained exactly once, and eviction must neither block nor
+ * corrupt the enqueues running next to it.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class RepositoryConcurrencyTest {
+
+    private static final int PRODUCERS = 4;
+
+    private static final int MESSAGES_PER_PRODUCER = 250;
+
+    private static final int BATCH_SIZE = 20;
+
+    // the 1Kb messages of all the producers take about 1Mb, so most of them get evicted
+    private static final long STORAGE_LIMIT = 400 * 1024;
+
+    private static final int BODY_LENGTH = 1024;
+
+    private Repository repository;
+
+    @Before
+    public void setup() {
+        Context context = Robolectric.application.getApplicationContext();
+        this.repository = Repository.open(context);
+    }
+
+    @After
+    public void tearDown() {
+        this.repository.close();
+    }
+
+    @Test(timeout = 120000)
+    public void parallelProducersAndConsumerShouldNeitherLoseNorDuplicateMessages() throws Exception {
+        final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch produced = new CountDownLatch(PRODUCERS);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final List<String> drained = Collections.synchronizedList(new ArrayList<String>());
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        URI uri = new URI("https://www.google.com/" + producer);
+                        for (int i = 0; i < MESSAGES_PER_PRODUCER; i++) {
+                            Message message = new Message(uri, producer + "-" + i);
+                            if (i % 2 == 0) {
+                                repository.insert(message);
+                            } else {
+                                repository.insert(message, Long.MAX_VALUE);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    } finally {
+                        produced.countDown();
+                    }
+                }
+            }));
+        }
+
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    while (true) {
+                        boolean finished = produced.getCount() == 0;
+                        List<Message> batch = repository.getNextBatch(BATCH_SIZE);
+                        if (batch.isEmpty()) {
+                            if (finished) {
+                                return;
+                            }
+                            Thread.sleep(1);
+                            continue;
+                        }
+
+                        long[] ids = new long[batch.size()];
+                        for (int i = 0; i < batch.size(); i++) {
+                            drained.add(batch.get(i).getBody());
+                            ids[i] = batch.get(i).getId();
+                        }
+                        repository.deleteAll(ids);
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                } finally {
+                    done.set(true);
+                }
+            }
+        }));
+
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    while (!done.get()) {
+                        repository.compact();
+                        repository.shrinkDb(Long.MAX_VALUE);
+                        Thread.sleep(5);
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        }));
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(100));
+        }
+
+        assertTrue("failures: " + failures, failures.isEmpty());
+        assertEquals(PRODUCERS * MESSAGES_PER_PRODUCER, drained.size());
+
+        Set<String> unique = new HashSet<String>(drained);
+        assertEquals(PRODUCERS * MESSAGES_PER_PRODUCER, unique.size());
+        for (int p = 0; p < PRODUCERS; p++) {
+            for (int i = 0; i < MESSAGES_PER_PRODUCER; i++) {
+                assertTrue(unique.contains(p + "-" + i));
+            }
+        }
+        assertEquals(0, this.repository.getAvailableMessagesCount());
+        assertEquals(0, this.repository.getQueuedBytes());
+    }
+
+    @Test(timeout = 120000)
+    public void evictionAndVacuumShouldNotBlockOrCorruptParallelEnqueues() throws Exception {
+        final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch produced = new CountDownLatch(PRODUCERS);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        URI uri = new URI("https://www.google.com/" + producer);
+                        for (int i = 0; i < MESSAGES_PER_PRODUCER; i++) {
+                            repository.insert(new Message(uri, body(producer, i)), STORAGE_LIMIT);
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    } finally {
+                        produced.countDown();
+                    }
+                }
+            }));
+        }
+
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    while (produced.getCount() > 0) {
+                        repository.shrinkDb(STORAGE_LIMIT);
+                        repository.compact();
+                        Thread.sleep(5);
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        }));
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(100));
+            assertFalse(thread.isAlive());
+        }
+        assertTrue("failures: " + failures, failures.isEmpty());
+
+        this.repository.shrinkDb(STORAGE_LIMIT);
+
+        List<Message> survivors = this.repository.getNextBatch(PRODUCERS * MESSAGES_PER_PRODUCER);
+        assertTrue(survivors.size() > 0);
+        assertTrue(survivors.size() < PRODUCERS * MESSAGES_PER_PRODUCER / 2);
+        Set<String> unique = new HashSet<String>();
+        for (Message message : survivors) {
+            assertTrue(unique.add(message.getBody()));
+            assertEquals(BODY_LENGTH, message.getBody().length());
+        }
+
+        SQLiteDatabase db = this.repository.getReadableDatabase();
+        assertEquals(survivors.size(), this.repository.getAvailableMessagesCount());
+        assertEquals(DatabaseUtils.queryNumEntries(db, "Message"), this.repository.getAvailableMessagesCount());
+        assertEquals(DatabaseUtils.longForQuery(db, "select ifnull(sum(size), 0) from Message", null),
+                this.repository.getQueuedBytes());
+        assertTrue(this.repository.getQueuedBytes() <= STORAGE_LIMIT);
+    }
+
+    @Test(timeout = 120000)
+    public void parallelClaimingWorkersShouldEachGetDistinctMessages() throws Exception {
+        final int workers = 4;
+        final int messages = PRODUCERS * MESSAGES_PER_PRODUCER;
+        for (int i = 0; i < messages; i++) {
+            this.repository.insert(new Message(new URI("https://www.google.com"), String.valueOf(i)));
+        }
+
+        final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<String> drained = Collections.synchronizedList(new ArrayList<String>());
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int w = 0; w < workers; w++) {
+            final String worker = "worker-" + w;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (true) {
+                            List<Message> batch = repository.claim(worker, BATCH_SIZE, Long.MAX_VALUE,
+                                    System.currentTimeMillis(), TimeUnit.MINUTES.toMillis(1));
+                            if (batch.isEmpty()) {
+                                return;
+                            }
+
+                            long[] ids = new long[batch.size()];
+                            for (int i = 0; i < batch.size(); i++) {
+                                drained.add(batch.get(i).getBody());
+                                ids[i] = batch.get(i).getId();
+                            }
+                            repository.deleteAll(ids);
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(100));
+        }
+
+        assertTrue("failures: " + failures, failures.isEmpty());
+        assertEquals(messages, drained.size());
+        assertEquals(messages, new HashSet<String>(drained).size());
+        assertEquals(0, this.repository.getAvailableMessagesCount());
+    }
+
+    private static String body(int producer, int i) {
+        StringBuilder body = new StringBuilder(producer + "-" + i + ":");
+        while (body.length() < BODY_LENGTH) {
+            body.append('x');
+        }
+        return body.toString();
+    }
+}
@@ -0,0 +1,677 @@
+package it.sii.reyna;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import it.sii.reyna.system.BodyCodec;
+import it.sii.reyna.system.Header;
+import it.sii.reyna.system.HeaderCodec;
+import it.sii.reyna.system.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class RepositoryTest {
+
+    private Context context;
+
+    private Repository repository;
+
+    @Before
+    public void setup() {
+        this.context = Robolectric.application.getApplicationContext();
+        this.repository = Repository.open(this.context);
+    }
+
+    @After
+    public void tearDown() {
+        this.repository.close();
+    }
+
+    @Test
+    public void openShouldReturnSharedInstance() {
+        Repository other = Repository.open(this.context);
+        try {
+            assertSame(this.repository, other);
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void closeShouldKeepDatabaseOpenWhileReferenced() throws URISyntaxException {
+        Repository other = Repository.open(this.context);
+        SQLiteDatabase db = other.getWritableDatabase();
+        other.close();
+
+        assertTrue(db.isOpen());
+        this.repository.insert(getMessageWithHeaders());
+        assertNotNull(this.repository.getNext());
+    }
+
+    @Test
+    public void openAfterLastCloseShouldReturnNewInstance() {
+        Repository first = this.repository;
+        first.close();
+
+        this.repository = Repository.open(this.context);
+
+        assertNotSame(first, this.repository);
+    }
+
+    @Test
+    public void getNextShouldReturnMessageWithItsId() throws URISyntaxException {
+        this.repository.insert(getMessageWithHeaders());
+
+        Message message = this.repository.getNext();
+
+        assertNotNull(message.getId());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void getNextBatchShouldReturnMessagesInOrderWithHeaders() throws URISyntaxException {
+        for (int i = 0; i < 5; i++) {
+            this.repository.insert(getMessageWithHeaders());
+        }
+        this.repository.insert(new Message(new URI("https://www.google.com"), "no headers"));
+
+        List<Message> batch = this.repository.getNextBatch(4);
+
+        assertEquals(4, batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Message message = batch.get(i);
+            if (i > 0) {
+                assertTrue(message.getId() > batch.get(i - 1).getId());
+            }
+            assertEquals(2, message.getHeaders().size());
+            assertEquals("h1", message.getHeaders().get(0).getKey());
+            assertEquals("v2", message.getHeaders().get(1).getValue());
+        }
+
+        List<Message> rest = this.repository.getNextBatchAfter(batch.get(3).getId(), 10);
+        assertEquals(2, rest.size());
+        assertEquals(0, rest.get(1).getHeaders().size());
+    }
+
+    @Test
+    public void getNextBatchWithEmptyQueueShouldReturnEmptyList() throws URISyntaxException {
+        assertTrue(this.repository.getNextBatch(10).isEmpty());
+    }
+
+    @Test
+    public void insertShouldStoreHeadersInline() throws URISyntaxException {
+        this.repository.insert(getMessageWithHeaders());
+
+        assertEquals(1, countRows("Message where headers is not null"));
+        List<Header> headers = this.repository.getNext().getHeaders();
+        assertEquals(2, headers.size());
+        assertEquals("h1", headers.get(0).getKey());
+        assertEquals("v2", headers.get(1).getValue());
+    }
+
+    @Test
+    public void encodedHeadersOfReadMessageShouldBePlain() throws URISyntaxException {
+        this.repository.insert(getMessageWithHeaders());
+
+        List<Header> headers = HeaderCodec.decode(this.repository.getNext().getEncodedHeaders());
+        assertEquals(2, headers.size());
+        assertEquals("h1", headers.get(0).getKey());
+        assertEquals("v2", headers.get(1).getValue());
+    }
+
+    @Test
+    public void compressedBodyShouldRoundTrip() throws URISyntaxException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            body.append("{\"sample\":").append(i).append(",\"unit\":\"C\"}");
+        }
+        this.repository.insert(new Message(new URI("https://www.google.com"), body.toString()));
+
+        assertEquals(body.toString(), this.repository.getNext().getBody());
+        assertEquals(1, countRows("Message where codec = 1"));
+    }
+
+    @Test
+    public void disabledCompressionShouldStorePlainText() throws URISyntaxException {
+        this.repository.setBodyCompression(false);
+        try {
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                body.append("{\"sample\":").append(i).append("}");
+            }
+            this.repository.insert(new Message(new URI("https://www.google.com"), body.toString()));
+
+            assertEquals(body.toString(), this.repository.getNext().getBody());
+            assertEquals(1, countRows("Message where codec = 0"));
+        } finally {
+            this.repository.setBodyCompression(true);
+        }
+    }
+
+    @Test
+    public void databaseShouldUseIncrementalAutoVacuum() {
+        Cursor cursor = this.repository.getReadableDatabase().rawQuery("pragma auto_vacuum", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(2, cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void compactShouldReleaseFreePages() throws URISyntaxException {
+        for (int i = 0; i < 50; i++) {
+            this.repository.insert(getMessageWithHeaders());
+        }
+        this.repository.deleteMessagesFrom(Long.MAX_VALUE);
+
+        this.repository.compact(Integer.MAX_VALUE);
+
+        Cursor cursor = this.repository.getReadableDatabase().rawQuery("pragma freelist_count", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(0, cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void queuedBytesShouldFollowInsertsAndDeletes() throws URISyntaxException {
+        assertEquals(0, this.repository.getQueuedBytes());
+
+        this.repository.insert(getMessageWithHeaders());
+        long oneMessage = this.repository.getQueuedBytes();
+        this.repository.insert(getMessageWithHeaders());
+
+        assertTrue(oneMessage > 0);
+        assertEquals(2 * oneMessage, this.repository.getQueuedBytes());
+
+        this.repository.delete(this.repository.getNext());
+        assertEquals(oneMessage, this.repository.getQueuedBytes());
+    }
+
+    @Test
+    public void shrinkDbShouldEvictOldestMessagesUntilUnderLimit() throws URISyntaxException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1024; i++) {
+            body.append((char) ('a' + (i * 7919) % 26));
+        }
+        this.repository.setBodyCompression(false);
+        try {
+            for (int i = 0; i < 400; i++) {
+                this.repository.insert(new Message(new URI("https://www.google.com"), body.toString()));
+            }
+        } finally {
+            this.repository.setBodyCompression(true);
+        }
+        long lastId = this.repository.getNextBatch(400).get(399).getId();
+
+        // 300Kb cleaning margin plus 100 messages of 1024 body and 22 url bytes
+        this.repository.shrinkDb(307200 + 100 * 1046);
+
+        assertEquals(100 * 1046, this.repository.getQueuedBytes());
+        assertEquals(100, countRows("Message"));
+        assertEquals(Long.valueOf(lastId), this.repository.getNextBatch(400).get(99).getId());
+    }
+
+    @Test
+    public void deleteAllShouldDeleteGivenMessagesOnly() throws URISyntaxException {
+        for (int i = 0; i < 1200; i++) {
+            this.repository.insert(getMessageWithHeaders());
+        }
+        List<Message> messages = this.repository.getNextBatch(1200);
+        long[] ids = new long[1100];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = messages.get(i).getId();
+        }
+
+        this.repository.deleteAll(ids);
+
+        assertEquals(100, countRows("Message"));
+        assertEquals(messages.get(1100).getId(), this.repository.getNext().getId());
+    }
+
+    @Test
+    public void deleteAllWithMissingIdsShouldNotThrow() {
+        this.repository.deleteAll(null);
+        this.repository.deleteAll(new long[0]);
+        this.repository.deleteAll(new long[]{42, 43});
+    }
+
+    @Test
+    public void largeBodyShouldBeKeptInFileAndRemovedAfterDelete() throws URISyntaxException {
+        StringBuilder body = new StringBuilder();
+        while (body.length() <= Repository.BODY_FILE_THRESHOLD) {
+            body.append("0123456789abcdef");
+        }
+        this.repository.insert(new Message(new URI("https://www.google.com"), body.toString()));
+
+        Message message = this.repository.getNext();
+        File file = message.getBodyFile();
+
+        assertNotNull(file);
+        assertTrue(file.exists());
+        assertEquals(body.length(), file.length());
+        assertEquals(body.toString(), message.getBody());
+        assertTrue(this.repository.getQueuedBytes() > body.length());
+
+        this.repository.delete(message);
+        this.repository.compact();
+
+        assertFalse(file.exists());
+        assertEquals(0, countRows("DeletedBodyFile"));
+    }
+
+    @Test
+    public void binaryBodyShouldBeStoredAsBytes() throws URISyntaxException {
+        byte[] body = new byte[]{0, 1, (byte) 0xff, (byte) 0xc3, 0x28, 0};
+        this.repository.insert(Message.binary(new URI("https://www.google.com"), body));
+
+        Message message = this.repository.getNext();
+
+        assertTrue(message.isBinary());
+        assertNull(message.getBody());
+        assertTrue(Arrays.equals(body, message.getBinaryBody()));
+        assertEquals(1, countRows("Message where codec = " + BodyCodec.BINARY));
+    }
+
+    @Test
+    public void bodyInAFileShouldBeCopiedToTheStore() throws Exception {
+        File spilled = File.createTempFile("spill", ".body");
+        FileOutputStream out = new FileOutputStream(spilled);
+        try {
+            out.write("spilled body".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        Message message = new Message(new URI("https://www.google.com"), "spilled body").withBodyFile(spilled);
+        this.repository.insert(message);
+        assertTrue(spilled.delete());
+
+        Message stored = this.repository.getNext();
+        assertNotNull(stored.getBodyFile());
+        assertFalse(spilled.equals(stored.getBodyFile()));
+        assertEquals("spilled body", stored.getBody());
+    }
+
+    @Test
+    public void largeBinaryBodyShouldBeKeptInFileAndRemovedAfterDelete() throws URISyntaxException {
+        byte[] body = new byte[(int) Repository.BODY_FILE_THRESHOLD + 1];
+        new Random(42).nextBytes(body);
+        this.repository.insert(Message.binary(new URI("https://www.google.com"), body));
+
+        Message message = this.repository.getNext();
+        File file = message.getBodyFile();
+
+        assertTrue(message.isBinary());
+        assertNotNull(file);
+        assertEquals(body.length, file.length());
+        assertTrue(Arrays.equals(body, message.getBinaryBody()));
+
+        this.repository.delete(message);
+        this.repository.compact();
+
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void higherPriorityMessagesShouldBeReturnedFirst() throws URISyntaxException {
+        this.repository.insert(getMessageWithPriority("normal1", Message.PRIORITY_NORMAL));
+        this.repository.insert(getMessageWithPriority("high", Message.PRIORITY_HIGH));
+        this.repository.insert(getMessageWithPriority("normal2", Message.PRIORITY_NORMAL));
+
+        List<Message> batch = this.repository.getNextBatch(10);
+
+        assertEquals(3, batch.size());
+        assertEquals("high", batch.get(0).getBody());
+        assertTrue(batch.get(0).isHighPriority());
+        assertEquals("normal1", batch.get(1).getBody());
+        assertEquals("normal2", batch.get(2).getBody());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void getNextBatchAfterMessageIdShouldFollowQueueOrder() throws URISyntaxException {
+        this.repository.insert(getMessageWithPriority("normal", Message.PRIORITY_NORMAL));
+        this.repository.insert(getMessageWithPriority("high", Message.PRIORITY_HIGH));
+
+        Message first = this.repository.getNext();
+        assertEquals("high", first.getBody());
+
+        List<Message> rest = this.repository.getNextBatchAfter(first.getId(), 10);
+        assertEquals(1, rest.size());
+        assertEquals("normal", rest.get(0).getBody());
+    }
+
+    @Test
+    public void positionShouldPickUpHigherPriorityMessagesQueuedMeanwhile() throws URISyntaxException {
+        for (int i = 0; i < 4; i++) {
+            this.repository.insert(getMessageWithPriority("normal" + i, Message.PRIORITY_NORMAL));
+        }
+
+        List<Message> first = this.repository.getNextBatchAfter((QueuePosition) null, 2, Long.MAX_VALUE);
+        QueuePosition position = QueuePosition.after(null, first);
+        this.repository.insert(getMessageWithPriority("high", Message.PRIORITY_HIGH));
+
+        List<Message> second = this.repository.getNextBatchAfter(position, 2, Long.MAX_VALUE);
+        assertEquals("high", second.get(0).getBody());
+        assertEquals("normal2", second.get(1).getBody());
+
+        position = QueuePosition.after(position, second);
+        List<Message> third = this.repository.getNextBatchAfter(position, 10, Long.MAX_VALUE);
+        assertEquals(1, third.size());
+        assertEquals("normal3", third.get(0).getBody());
+
+        position = QueuePosition.after(position, third);
+        assertTrue(this.repository.getNextBatchAfter(position, 10, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void urlsShouldBeInternedPerEndpoint() throws URISyntaxException {
+        this.repository.insert(new Message(new URI("https://www.google.com"), "body1"));
+        this.repository.insert(new Message(new URI("https://www.bing.com"), "body2"));
+        this.repository.insert(new Message(new URI("https://www.google.com"), "body3"));
+
+        assertEquals(2, countRows("Endpoint"));
+        assertEquals(2, this.repository.getAvailableMessagesCount("https://www.google.com"));
+        assertEquals(1, this.repository.getAvailableMessagesCount("https://www.bing.com"));
+        assertEquals(0, this.repository.getAvailableMessagesCount("https://www.yahoo.com"));
+
+        List<Message> messages = this.repository.getNextBatch(3);
+        assertEquals("https://www.google.com", messages.get(0).getUrl());
+        assertEquals("https://www.bing.com", messages.get(1).getUrl());
+        assertEquals("https://www.google.com", messages.get(2).getUrl());
+    }
+
+    @Test
+    public void deleteExpiredShouldOnlyRemoveExpiredMessages() throws URISyntaxException {
+        Message expired = new Message(new URI("https://www.google.com"), "expired");
+        expired.setExpiresAt(1000L);
+        Message live = new Message(new URI("https://www.google.com"), "live");
+        live.setExpiresAt(3000L);
+        this.repository.insert(expired);
+        this.repository.insert(live);
+        this.repository.insert(new Message(new URI("https://www.google.com"), "forever"));
+
+        assertEquals(1, this.repository.deleteExpired(2000L));
+
+        List<Message> messages = this.repository.getNextBatch(10);
+        assertEquals(2, messages.size());
+        assertEquals("live", messages.get(0).getBody());
+        assertEquals(Long.valueOf(3000L), messages.get(0).getExpiresAt());
+        assertNull(messages.get(1).getExpiresAt());
+    }
+
+    @Test
+    public void messageWithQueuedIdempotencyKeyShouldBeIgnored() throws URISyntaxException {
+        Message first = new Message(new URI("https://www.google.com"), "first");
+        first.setIdempotencyKey("order-42");
+        Message retry = new Message(new URI("https://www.google.com"), "retry");
+        retry.setIdempotencyKey("order-42");
+        this.repository.insert(first);
+        this.repository.insert(retry);
+        this.repository.insert(new Message(new URI("https://www.google.com"), "no key"));
+        this.repository.insert(new Message(new URI("https://www.google.com"), "no key"));
+
+        List<Message> messages = this.repository.getNextBatch(10);
+        assertEquals(3, messages.size());
+        assertEquals("first", messages.get(0).getBody());
+        assertEquals("order-42", messages.get(0).getIdempotencyKey());
+
+        this.repository.delete(messages.get(0));
+        this.repository.insert(retry);
+        assertEquals("retry", this.repository.getNextBatch(10).get(2).getBody());
+    }
+
+    @Test
+    public void messageWithCoalesceKeyShouldReplaceQueuedOne() throws URISyntaxException {
+        for (int level = 100; level > 90; level--) {
+            Message battery = new Message(new URI("https://www.google.com"), "battery " + level);
+            battery.setCoalesceKey("battery");
+            this.repository.insert(battery);
+        }
+        this.repository.insert(new Message(new URI("https://www.google.com"), "event"));
+        Message last = new Message(new URI("https://www.google.com"), "battery 90");
+        last.setCoalesceKey("battery");
+        this.repository.insert(last);
+
+        List<Message> messages = this.repository.getNextBatch(10);
+        assertEquals(2, messages.size());
+        assertEquals("event", messages.get(0).getBody());
+        assertEquals("battery 90", messages.get(1).getBody());
+        assertEquals("battery", messages.get(1).getCoalesceKey());
+        // 10 body bytes, 22 url bytes each
+        assertEquals(5 + 22 + 10 + 22, this.repository.getQueuedBytes());
+    }
+
+    @Test
+    public void insertAllShouldQueueMessagesInOrder() throws URISyntaxException {
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < 5; i++) {
+            messages.add(new Message(new URI("https://www.google.com"), "body" + i));
+        }
+
+        this.repository.insertAll(messages, -1);
+
+        List<Message> queued = this.repository.getNextBatch(10);
+        assertEquals(5, queued.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("body" + i, queued.get(i).getBody());
+        }
+    }
+
+    @Test
+    public void credentialsShouldBeStoredOnceAndRotatedInOneUpdate() throws URISyntaxException {
+        for (int i = 0; i < 3; i++) {
+            this.repository.insert(new Message(new URI("https://www.google.com"), "body" + i, "user", "old"));
+        }
+        this.repository.insert(new Message(new URI("https://www.google.com"), "other", "someone", "else"));
+        this.repository.insert(new Message(new URI("https://www.google.com"), "anonymous"));
+
+        assertEquals(2, countRows("Credential"));
+
+        this.repository.updateCredentials("user", "new");
+
+        List<Message> messages = this.repository.getNextBatch(10);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("user", messages.get(i).getUsername());
+            assertEquals("new", messages.get(i).getPassword());
+        }
+        assertEquals("else", messages.get(3).getPassword());
+        assertNull(messages.get(4).getUsername());
+        assertNull(messages.get(4).getPassword());
+        assertEquals(messages.get(0).getCredentialId(), messages.get(2).getCredentialId());
+        assertFalse(messages.get(0).getCredentialId() == messages.get(3).getCredentialId());
+        assertEquals(0, messages.get(4).getCredentialId());
+
+        this.repository.insert(new Message(new URI("https://www.google.com"), "after", "user", "new"));
+        assertEquals(2, countRows("Credential"));
+    }
+
+    @Test
+    public void identicalHeadersShouldBeStoredOnceAndShared() throws URISyntaxException {
+        for (int i = 0; i < 3; i++) {
+            Message message = getMessageWithHeaders();
+            message.addHeader(new Header("X-Request", "request " + i));
+            this.repository.insert(message);
+        }
+
+        assertEquals(2, countRows("HeaderPair"));
+
+        List<Message> messages = this.repository.getNextBatch(3);
+        for (int i = 0; i < 3; i++) {
+            List<Header> headers = messages.get(i).getHeaders();
+            assertEquals(3, headers.size());
+            assertEquals("h1", headers.get(0).getKey());
+            if (i > 0) {
+                assertSame(messages.get(1).getHeaders().get(0), headers.get(0));
+            }
+            assertEquals("h2", headers.get(1).getKey());
+            assertEquals("v2", headers.get(1).getValue());
+            assertEquals("request " + i, headers.get(2).getValue());
+        }
+    }
+
+    @Test
+    public void longHeaderShouldBeStoredInline() throws URISyntaxException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i <= HeaderDictionary.MAX_PAIR_LENGTH; i++) {
+            value.append('x');
+        }
+        for (int i = 0; i < 2; i++) {
+            Message message = getMessageWithHeaders();
+            message.addHeader(new Header("X-Long", value.toString()));
+            this.repository.insert(message);
+        }
+
+        assertEquals(2, countRows("HeaderPair"));
+        List<Header> headers = this.repository.getNext().getHeaders();
+        assertEquals(3, headers.size());
+        assertEquals(value.toString(), headers.get(2).getValue());
+    }
+
+    @Test
+    public void duplicateIdempotencyKeyShouldNotReplaceCoalescedMessage() throws URISyntaxException {
+        Message queued = new Message(new URI("https://www.google.com"), "queued");
+        queued.setCoalesceKey("battery");
+        this.repository.insert(queued);
+
+        Message first = new Message(new URI("https://www.google.com"), "first");
+        first.setIdempotencyKey("key");
+        Message duplicate = new Message(new URI("https://www.google.com"), "duplicate");
+        duplicate.setIdempotencyKey("key");
+        duplicate.setCoalesceKey("battery");
+        this.repository.insertAll(Arrays.asList(first, duplicate), -1);
+
+        List<Message> messages = this.repository.getNextBatch(10);
+        assertEquals(2, messages.size());
+        assertEquals("queued", messages.get(0).getBody());
+        assertEquals("first", messages.get(1).getBody());
+    }
+
+    @Test
+    public void queueDepthShouldFollowEveryWayMessagesLeave() throws URISyntaxException {
+        for (int i = 0; i < 4; i++) {
+            this.repository.insert(new Message(new URI("https://www.google.com"), "body" + i));
+        }
+        Message coalesced = new Message(new URI("https://www.bing.com"), "first");
+        coalesced.setCoalesceKey("key");
+        this.repository.insert(coalesced);
+        Message latest = new Message(new URI("https://www.bing.com"), "latest");
+        latest.setCoalesceKey("key");
+        this.repository.insert(latest);
+        Message expired = new Message(new URI("https://www.bing.com"), "expired");
+        expired.setExpiresAt(1000L);
+        this.repository.insert(expired);
+
+        assertEquals(6, this.repository.getAvailableMessagesCount());
+        assertEquals(2, this.repository.getAvailableMessagesCount("https://www.bing.com"));
+
+        this.repository.deleteExpired(2000L);
+        List<Message> messages = this.repository.getNextBatch(2);
+        this.repository.delete(messages.get(0));
+        this.repository.deleteAll(new long[]{messages.get(1).getId()});
+
+        assertEquals(3, this.repository.getAvailableMessagesCount());
+        assertEquals(2, this.repository.getAvailableMessagesCount("https://www.google.com"));
+        assertEquals(1, this.repository.getAvailableMessagesCount("https://www.bing.com"));
+        assertEquals(countRows("Message"), this.repository.getAvailableMessagesCount());
+    }
+
+    @Test
+    public void claimedMessagesShouldBeLeasedToOneWorker() throws URISyntaxException {
+        for (int i = 0; i < 5; i++) {
+            this.repository.insert(new Message(new URI("https://www.google.com"), "body" + i));
+        }
+        long now = System.currentTimeMillis();
+
+        List<Message> first = this.repository.claim("first", 2, Long.MAX_VALUE, now, 60000L);
+        List<Message> second = this.repository.claim("second", 2, Long.MAX_VALUE, now, 60000L);
+
+        assertEquals("body0", first.get(0).getBody());
+        assertEquals("body1", first.get(1).getBody());
+        assertEquals("body2", second.get(0).getBody());
+        assertEquals("body3", second.get(1).getBody());
+        assertEquals(1, this.repository.claim("third", 10, Long.MAX_VALUE, now, 60000L).size());
+        // readers that do not claim skip leased messages as well
+        assertTrue(this.repository.getNextBatch(10).isEmpty());
+        assertEquals(5, this.repository.getAvailableMessagesCount());
+    }
+
+    @Test
+    public void expiredOrReleasedLeasesShouldBeClaimedAgain() throws URISyntaxException {
+        for (int i = 0; i < 3; i++) {
+            this.repository.insert(new Message(new URI("https://www.google.com"), "body" + i));
+        }
+        List<Message> crashed = this.repository.claim("crashed", 1, Long.MAX_VALUE, 1000L, 500L);
+        List<Message> retrying = this.repository.claim("retrying", 1, Long.MAX_VALUE, 1000L, 500L);
+
+        this.repository.release("retrying", new long[]{retrying.get(0).getId()});
+        // another worker cannot release a lease it does not hold
+        this.repository.release("retrying", new long[]{crashed.get(0).getId()});
+
+        List<Message> claimed = this.repository.claim("next", 10, Long.MAX_VALUE, 1200L, 500L);
+        assertEquals(2, claimed.size());
+        assertEquals("body1", claimed.get(0).getBody());
+        assertEquals("body2", claimed.get(1).getBody());
+
+        claimed = this.repository.claim("next", 10, Long.MAX_VALUE, 1500L, 500L);
+        assertEquals(1, claimed.size());
+        assertEquals(crashed.get(0).getId(), claimed.get(0).getId());
+    }
+
+    @Test
+    public void moreExpiredLeasesThanTheBindLimitShouldBeClaimedAgain() throws URISyntaxException {
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < 1200; i++) {
+            messages.add(new Message(new URI("https://www.google.com"), "body" + i));
+        }
+        this.repository.insertAll(messages, -1);
+        assertEquals(1200, this.repository.claim("crashed", 1200, Long.MAX_VALUE, 1000L, 500L).size());
+
+        assertEquals(1200, this.repository.claim("next", 1200, Long.MAX_VALUE, 1500L, 500L).size());
+    }
+
+    private static Message getMessageWithPriority(String body, int priority) throws URISyntaxException {
+        Message message = new Message(new URI("https://www.google.com"), body);
+        message.setPriority(priority);
+        return message;
+    }
+
+    private long countRows(String table) {
+        Cursor cursor = this.repository.getReadableDatabase().rawQuery("select count(*) from " + table, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    static Message getMessageWithHeaders() throws URISyntaxException {
+        Message message = new Message(new URI("https://www.google.com"), "body");
+        message.addHeader(new Header("h1", "v1"));
+        message.addHeader(new Header("h2", "v2"));
+        return message;
+    }
+}
@@ -0,0 +1,437 @@
+package it.sii.reyna.log;
+
+import it.sii.reyna.QueuePosition;
+import it.sii.reyna.system.Header;
+import it.sii.reyna.system.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class LogMessageStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    private LogMessageStore store;
+
+    @Before
+    public void setup() throws Exception {
+        this.directory = this.folder.newFolder("log");
+        this.store = new LogMessageStore(this.directory);
+    }
+
+    @After
+    public void tearDown() {
+        this.store.close();
+    }
+
+    @Test
+    public void messagesShouldComeBackInArrivalOrderWithAllTheirFields() throws Exception {
+        Message text = new Message(new URI("https://www.google.com"), "body");
+        text.addHeader(new Header("h1", "v1"));
+        text.setNumberOfTries(3);
+        text.setPriority(Message.PRIORITY_HIGH);
+        text.setExpiresAt(Long.MAX_VALUE - 1);
+        text.setIdempotencyKey("idempotency");
+        text.setCoalesceKey("coalesce");
+        Message binary = Message.binary(new URI("https://www.google.com/binary"), new byte[]{1, 2, 3}, "user", "pass");
+        this.store.insert(text);
+        this.store.insert(binary);
+
+        List<Message> messages = this.store.getNextBatch(10);
+
+        assertEquals(2, messages.size());
+        Message first = messages.get(0);
+        assertEquals(Long.valueOf(1), first.getId());
+        assertEquals("https://www.google.com", first.getUrl());
+        assertEquals("body", first.getBody());
+        assertEquals(1, first.getHeaders().size());
+        assertEquals("v1", first.getHeaders().get(0).getValue());
+        assertEquals(Integer.valueOf(3), first.getNumberOfTries());
+        assertEquals(Message.PRIORITY_HIGH, first.getPriority());
+        assertEquals(Long.valueOf(Long.MAX_VALUE - 1), first.getExpiresAt());
+        assertEquals("idempotency", first.getIdempotencyKey());
+        assertEquals("coalesce", first.getCoalesceKey());
+
+        Message second = messages.get(1);
+        assertEquals(Long.valueOf(2), second.getId());
+        assertTrue(second.isBinary());
+        assertArrayEquals(new byte[]{1, 2, 3}, second.getBinaryBody());
+        assertEquals("user", second.getUsername());
+        assertEquals("pass", second.getPassword());
+        assertNull(second.getNumberOfTries());
+        assertNull(second.getExpiresAt());
+    }
+
+    @Test
+    public void largeBodyShouldBeCompressedAndRestored() throws Exception {
+        String body = repeat("compressible ", 1000);
+        this.store.insert(new Message(new URI("https://www.google.com"), body));
+
+        assertEquals(body, this.store.getNext().getBody());
+        assertTrue(this.store.getLiveBytes() < body.length());
+    }
+
+    @Test
+    public void acknowledgedMessagesShouldNotComeBackAfterReopening() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            this.store.insert(new Message(new URI("https://www.google.com"), "body" + i));
+        }
+        this.store.deleteAll(new long[]{1, 3});
+        this.store.delete(this.store.getNext());
+
+        this.reopen();
+
+        assertEquals(2, this.store.getAvailableMessagesCount());
+        List<Message> messages = this.store.getNextBatch(10);
+        assertEquals("body3", messages.get(0).getBody());
+        assertEquals("body4", messages.get(1).getBody());
+    }
+
+    @Test
+    public void decrementedTriesShouldBeKeptAcrossReopening() throws Exception {
+        Message message = new Message(new URI("https://www.google.com"), "body");
+        message.setNumberOfTries(3);
+        this.store.insert(message);
+
+        this.store.decrementMessageTries(this.store.getNext());
+        this.reopen();
+
+        assertEquals(Integer.valueOf(2), this.store.getNext().getNumberOfTries());
+    }
+
+    @Test
+    public void fullyAcknowledgedSegmentsShouldBeDeleted() throws Exception {
+        String body = repeat("x", LogMessageStore.SEGMENT_BYTES / 3);
+        this.store.setBodyCompression(false);
+        for (int i = 0; i < 6; i++) {
+            this.store.insert(new Message(new URI("https://www.google.com"), body));
+        }
+        assertEquals(3, this.segmentFiles());
+
+        this.store.deleteAll(new long[]{1, 2});
+
+        assertEquals(2, this.segmentFiles());
+        assertEquals(4, this.store.getAvailableMessagesCount());
+    }
+
+    @Test
+    public void messageLargerThanASegmentShouldGetOneOfItsOwn() throws Exception {
+        this.store.setBodyCompression(false);
+        this.store.insert(new Message(new URI("https://www.google.com"), "small"));
+        String body = repeat("x", 2 * LogMessageStore.SEGMENT_BYTES);
+        this.store.insert(new Message(new URI("https://www.google.com"), body));
+
+        assertEquals(2, this.segmentFiles());
+        assertEquals(body, this.store.getNextBatch(2).get(1).getBody());
+    }
+
+    @Test
+    public void shrinkShouldDropWholeOldestSegments() throws Exception {
+        String body = repeat("x", LogMessageStore.SEGMENT_BYTES / 3);
+        this.store.setBodyCompression(false);
+        for (int i = 0; i < 6; i++) {
+            this.store.insert(new Message(new URI("https://www.google.com"), body));
+        }
+
+        this.store.shrinkDb(this.store.getQueuedBytes());
+
+        assertEquals(4, this.store.getAvailableMessagesCount());
+        assertEquals(Long.valueOf(3), this.store.getNext().getId());
+    }
+
+    @Test
+    public void insertOverTheLimitShouldEvictTheOldestSegment() throws Exception {
+        String body = repeat("x", LogMessageStore.SEGMENT_BYTES / 3);
+        this.store.setBodyCompression(false);
+        for (int i = 0; i < 3; i++) {
+            this.store.insert(new Message(new URI("https://www.google.com"), body));
+        }
+
+        this.store.insert(new Message(new URI("https://www.google.com"), body), this.store.getQueuedBytes());
+
+        assertEquals(2, this.store.getAvailableMessagesCount());
+        assertEquals(Long.valueOf(3), this.store.getNext().getId());
+    }
+
+    @Test
+    public void limitShouldCountWholeSegmentFiles() throws Exception {
+        this.store.setBodyCompression(false);
+        this.store.insert(new Message(new URI("https://www.google.com"), "small"));
+        assertEquals(LogMessageStore.SEGMENT_BYTES, this.store.getQueuedBytes());
+
+        String body = repeat("x", LogMessageStore.SEGMENT_BYTES / 3);
+        for (int i = 0; i < 10; i++) {
+            this.store.insert(new Message(new URI("https://www.google.com"), body), 2 * LogMessageStore.SEGMENT_BYTES);
+            assertTrue(this.segmentFiles() <= 2);
+        }
+        assertTrue(this.store.getQueuedBytes() <= 2 * LogMessageStore.SEGMENT_BYTES);
+        assertEquals(this.store.getAvailableMessagesCount(), this.store.getAvailableMessagesCount("https://www.google.com"));
+    }
+
+    @Test
+    public void tornRecordShouldEndTheLogOnReopening() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            this.store.insert(new Message(new URI("https://www.google.com"), "body" + i));
+        }
+        long size = this.store.getLiveBytes() / 3;
+        this.store.close();
+
+        File segment = new File(this.directory, Segment.name(1));
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            // flips a payload byte of the last record
+            long offset = 2 * (Segment.RECORD_HEADER_BYTES + size) + Segment.RECORD_HEADER_BYTES + 20;
+            file.seek(offset);
+            int value = file.read();
+            file.seek(offset);
+            file.write(value ^ 0xff);
+        } finally {
+            file.close();
+        }
+        this.store = new LogMessageStore(this.directory);
+
+        assertEquals(2, this.store.getAvailableMessagesCount());
+        this.store.insert(new Message(new URI("https://www.google.com"), "after"));
+        assertEquals("after", this.store.getNextBatch(10).get(2).getBody());
+        assertEquals(Long.valueOf(3), this.store.getNextBatch(10).get(2).getId());
+    }
+
+    @Test
+    public void batchAfterPositionShouldRespectCountAndBytes() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            this.store.insert(new Message(new URI("https://www.google.com"), "body" + i));
+        }
+        long size = this.store.getLiveBytes() / 5;
+
+        List<Message> first = this.store.getNextBatchAfter(null, 2, Long.MAX_VALUE);
+        QueuePosition position = QueuePosition.after(null, first);
+        List<Message> second = this.store.getNextBatchAfter(position, 10, 2 * size);
+
+        assertEquals(Arrays.asList(1L, 2L), ids(first));
+        assertEquals(Arrays.asList(3L, 4L), ids(second));
+        assertEquals(1, this.store.getNextBatchAfter(QueuePosition.after(position, second), 10, 1).size());
+    }
+
+    @Test
+    public void deleteExpiredShouldAcknowledgeOnlyExpiredMessages() throws Exception {
+        Message expired = new Message(new URI("https://www.google.com"), "expired");
+        expired.setExpiresAt(1000L);
+        Message live = new Message(new URI("https://www.google.com"), "live");
+        live.setExpiresAt(3000L);
+        this.store.insert(expired);
+        this.store.insert(live);
+        this.store.insert(new Message(new URI("https://www.google.com"), "forever"));
+
+        assertEquals(1, this.store.deleteExpired(2000));
+
+        assertEquals(2, this.store.getAvailableMessagesCount());
+        assertEquals("live", this.store.getNext().getBody());
+    }
+
+    @Test
+    public void compactShouldShrinkTheAcknowledgementIndex() throws Exception {
+        String body = repeat("x", LogMessageStore.SEGMENT_BYTES / 3);
+        this.store.setBodyCompression(false);
+        for (int i = 0; i < 4; i++) {
+            this.store.insert(new Message(new URI("https://www.google.com"), body));
+        }
+        this.store.deleteAll(new long[]{1, 2, 3});
+        File acks = new File(this.directory, "acks");
+        assertEquals(3 * 8, acks.length());
+
+        this.store.compact();
+
+        assertEquals(8, acks.length());
+    }
+
+    @Test
+    public void rotatedPasswordShouldApplyToQueuedMessagesAcrossReopening() throws Exception {
+        this.store.insert(new Message(new URI("https://www.google.com"), "body", "user", "old"));
+        this.store.insert(new Message(new URI("https://www.google.com"), "other", "someone", "else"));
+
+        this.store.updateCredentials("user", "new");
+        this.reopen();
+
+        List<Message> messages = this.store.getNextBatch(10);
+        assertEquals("new", messages.get(0).getPassword());
+        assertEquals("else", messages.get(1).getPassword());
+    }
+
+    @Test
+    public void rotationShouldNotChangeThePasswordOfLaterMessages() throws Exception {
+        this.store.insert(new Message(new URI("https://www.google.com"), "before", "user", "old"));
+        this.store.updateCredentials("user", "new");
+        this.store.insert(new Message(new URI("https://www.google.com"), "newer", "user", "newer"));
+        this.store.insert(new Message(new URI("https://www.google.com"), "older", "user", "old"));
+        this.reopen();
+
+        List<Message> messages = this.store.getNextBatch(10);
+        assertEquals("new", messages.get(0).getPassword());
+        assertEquals("newer", messages.get(1).getPassword());
+        assertEquals("old", messages.get(2).getPassword());
+        assertFalse(messages.get(0).getCredentialId() == messages.get(2).getCredentialId());
+    }
+
+    @Test
+    public void countPerUrlShouldOnlyCountQueuedMessagesOfThatUrl() throws Exception {
+        this.store.insert(new Message(new URI("https://www.google.com"), "body"));
+        this.store.insert(new Message(new URI("https://www.bing.com"), "body"));
+        this.store.insert(new Message(new URI("https://www.google.com"), "body"));
+
+        this.store.deleteAll(new long[]{1});
+
+        assertEquals(1, this.store.getAvailableMessagesCount("https://www.google.com"));
+        assertEquals(1, this.store.getAvailableMessagesCount("https://www.bing.com"));
+        assertEquals(0, this.store.getAvailableMessagesCount("https://www.yahoo.com"));
+    }
+
+    @Test
+    public void countPerUrlShouldFollowCoalescingExpiryAndReopening() throws Exception {
+        Message first = new Message(new URI("https://www.google.com"), "first");
+        first.setCoalesceKey("key");
+        Message latest = new Message(new URI("https://www.google.com"), "latest");
+        latest.setCoalesceKey("key");
+        Message expiring = new Message(new URI("https://www.bing.com"), "expiring");
+        expiring.setExpiresAt(10L);
+        this.store.insert(first);
+        this.store.insert(latest);
+        this.store.insert(expiring);
+        assertEquals(1, this.store.getAvailableMessagesCount("https://www.google.com"));
+        assertEquals(1, this.store.getAvailableMessagesCount("https://www.bing.com"));
+
+        this.store.deleteExpired(10L);
+        this.reopen();
+
+        assertEquals(1, this.store.getAvailableMessagesCount("https://www.google.com"));
+        assertEquals(0, this.store.getAvailableMessagesCount("https://www.bing.com"));
+    }
+
+    @Test
+    public void claimedMessagesShouldBeSkippedUntilTheirLeaseEnds() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            this.store.insert(new Message(new URI("https://www.google.com"), "body" + i));
+        }
+
+        List<Message> first = this.store.claim("first", 2, Long.MAX_VALUE, 1000L, 500L);
+        List<Message> second = this.store.claim("second", 2, Long.MAX_VALUE, 1000L, 500L);
+        assertEquals(Arrays.asList(1L, 2L), ids(first));
+        assertEquals(Arrays.asList(3L), ids(second));
+
+        this.store.release("second", new long[]{3});
+        this.store.deleteAll(new long[]{1});
+
+        assertEquals(Arrays.asList(3L), ids(this.store.claim("third", 10, Long.MAX_VALUE, 1200L, 500L)));
+        assertEquals(Arrays.asList(2L), ids(this.store.claim("third", 10, Long.MAX_VALUE, 1500L, 500L)));
+    }
+
+    @Test
+    public void higherPriorityMessagesShouldBeReadFirstAcrossReopening() throws Exception {
+        this.store.insert(priority("normal1", Message.PRIORITY_NORMAL));
+        this.store.insert(priority("low", Message.PRIORITY_NORMAL - 1));
+        this.store.insert(priority("high", Message.PRIORITY_HIGH));
+        this.store.insert(priority("normal2", Message.PRIORITY_NORMAL));
+        this.reopen();
+
+        List<Message> first = this.store.getNextBatchAfter(null, 2, Long.MAX_VALUE);
+        QueuePosition position = QueuePosition.after(null, first);
+        this.store.insert(priority("urgent", Message.PRIORITY_HIGH));
+        List<Message> rest = this.store.getNextBatchAfter(position, 10, Long.MAX_VALUE);
+
+        assertEquals(Arrays.asList(3L, 1L), ids(first));
+        assertEquals(Arrays.asList(5L, 4L, 2L), ids(rest));
+    }
+
+    @Test
+    public void duplicateIdempotencyKeyShouldBeSkippedWhileQueued() throws Exception {
+        Message message = new Message(new URI("https://www.google.com"), "body");
+        message.setIdempotencyKey("key");
+        this.store.insert(message);
+        this.store.insertAll(Arrays.asList(message, message), -1);
+        this.reopen();
+        this.store.insert(message);
+
+        assertEquals(1, this.store.getAvailableMessagesCount());
+
+        this.store.deleteAll(new long[]{1});
+        this.store.insert(message);
+        assertEquals(1, this.store.getAvailableMessagesCount());
+    }
+
+    @Test
+    public void coalesceKeyShouldReplaceTheQueuedMessage() throws Exception {
+        this.store.insert(coalesced("first"));
+        this.store.insert(new Message(new URI("https://www.google.com"), "other"));
+        this.reopen();
+        this.store.insertAll(Arrays.asList(coalesced("second"), coalesced("third")), -1);
+
+        List<Message> messages = this.store.getNextBatch(10);
+        assertEquals(2, messages.size());
+        assertEquals("other", messages.get(0).getBody());
+        assertEquals("third", messages.get(1).getBody());
+
+        this.reopen();
+        assertEquals(2, this.store.getAvailableMessagesCount());
+    }
+
+    private static Message priority(String body, int priority) throws Exception {
+        Message message = new Message(new URI("https://www.google.com"), body);
+        message.setPriority(priority);
+        return message;
+    }
+
+    private static Message coalesced(String body) throws Exception {
+        Message message = new Message(new URI("https://www.google.com"), body);
+        message.setCoalesceKey("sensor");
+        return message;
+    }
+
+    private void reopen() {
+        this.store.close();
+        this.store = new LogMessageStore(this.directory);
+    }
+
+    private int segmentFiles() {
+        int count = 0;
+        for (File file : this.directory.listFiles()) {
+            if (Segment.isSegment(file)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static List<Long> ids(List<Message> messages) {
+        List<Long> ids = new ArrayList<Long>();
+        for (Message message : messages) {
+            ids.add(message.getId());
+        }
+        return ids;
+    }
+
+    private static String repeat(String value, int times) {
+        StringBuilder builder = new StringBuilder(value.length() * times);
+        for (int i = 0; i < times; i++) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package it.sii.reyna.messageProvider;
+
+import it.sii.reyna.QueuePosition;
+import it.sii.reyna.Repository;
+import it.sii.reyna.system.Message;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class MessageStreamTest {
+
+    @Mock
+    Repository repository;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void emptyQueueShouldHaveNoNext() throws Exception {
+        when(this.repository.getNextBatchAfter((QueuePosition) null, 10, 1000L)).thenReturn(new ArrayList<Message>());
+
+        MessageStream stream = new MessageStream(this.repository, 10, 1000L);
+
+        assertFalse(stream.hasNext());
+        stream.close();
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void nextOnExhaustedStreamShouldThrow() throws Exception {
+        when(this.repository.getNextBatchAfter((QueuePosition) null, 10, 1000L)).thenReturn(new ArrayList<Message>());
+
+        new MessageStream(this.repository, 10, 1000L).next();
+    }
+
+    @Test
+    public void streamShouldReadAheadWindowsAfterLastPosition() throws Exception {
+        when(this.repository.getNextBatchAfter((QueuePosition) null, 2, 1000L)).thenReturn(messages(1, 2));
+        when(this.repository.getNextBatchAfter(new QueuePosition(0, 2, 2), 2, 1000L)).thenReturn(messages(3, 4));
+        when(this.repository.getNextBatchAfter(new QueuePosition(0, 4, 4), 2, 1000L)).thenReturn(messages(5));
+        when(this.repository.getNextBatchAfter(new QueuePosition(0, 5, 5), 2, 1000L)).thenReturn(new ArrayList<Message>());
+
+        MessageStream stream = new MessageStream(this.repository, 2, 1000L);
+        List<Long> ids = new ArrayList<Long>();
+        while (stream.hasNext()) {
+            ids.add(stream.next().getId());
+        }
+        stream.close();
+
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), ids);
+        verify(this.repository).getNextBatchAfter(new QueuePosition(0, 5, 5), 2, 1000L);
+    }
+
+    private static List<Message> messages(long... ids) throws Exception {
+        List<Message> messages = new ArrayList<Message>();
+        for (long id : ids) {
+            messages.add(new Message(id, new URI("https://www.google.com"), "body", null, null, null));
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,67 @@
+package it.sii.reyna.services;
+
+import it.sii.reyna.system.Message;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WriteBufferTest {
+
+    @Test
+    public void bufferShouldBeDueWhenFull() throws Exception {
+        WriteBuffer buffer = new WriteBuffer(3, 1000);
+
+        assertFalse(buffer.add(message("1"), 0));
+        assertFalse(buffer.add(message("2"), 0));
+        assertTrue(buffer.add(message("3"), 0));
+        assertTrue(buffer.isFull());
+    }
+
+    @Test
+    public void bufferShouldBeDueWhenOldestMessageWaitedTooLong() throws Exception {
+        WriteBuffer buffer = new WriteBuffer(10, 1000);
+
+        assertFalse(buffer.add(message("1"), 0));
+        assertFalse(buffer.isDue(999));
+        assertTrue(buffer.isDue(1000));
+        assertTrue(buffer.add(message("2"), 1000));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addToFullBufferShouldThrow() throws Exception {
+        WriteBuffer buffer = new WriteBuffer(1, 1000);
+        buffer.add(message("1"), 0);
+        buffer.add(message("2"), 0);
+    }
+
+    @Test
+    public void stagedMessagesShouldStayUntilDiscarded() throws Exception {
+        WriteBuffer buffer = new WriteBuffer(3, 1000);
+        buffer.add(message("1"), 0);
+        buffer.add(message("2"), 0);
+
+        assertEquals(2, buffer.staged().size());
+        assertEquals(2, buffer.staged().size());
+
+        buffer.discard(1);
+        buffer.add(message("3"), 0);
+        buffer.add(message("4"), 0);
+
+        List<Message> staged = buffer.staged();
+        assertEquals(3, staged.size());
+        assertEquals("2", staged.get(0).getBody());
+        assertEquals("3", staged.get(1).getBody());
+        assertEquals("4", staged.get(2).getBody());
+
+        buffer.discard(3);
+        assertEquals(0, buffer.size());
+        assertFalse(buffer.isDue(5000));
+    }
+
+    private static Message message(String body) throws Exception {
+        return new Message(new URI("https://www.google.com"), body);
+    }
+}
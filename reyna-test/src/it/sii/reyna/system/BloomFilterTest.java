@@ -0,0 +1,44 @@
+package it.sii.reyna.system;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BloomFilterTest {
+
+    @Test
+    public void emptyFilterShouldContainNothing() {
+        BloomFilter filter = new BloomFilter(1024, 4);
+
+        assertFalse(filter.mightContain("key"));
+        assertFalse(filter.mightContain(""));
+    }
+
+    @Test
+    public void addedKeysShouldAlwaysBeFound() {
+        BloomFilter filter = new BloomFilter(64 * 1024, 4);
+        for (int i = 0; i < 5000; i++) {
+            filter.add("order-" + i);
+        }
+
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(filter.mightContain("order-" + i));
+        }
+    }
+
+    @Test
+    public void falsePositivesShouldBeRare() {
+        BloomFilter filter = new BloomFilter(64 * 1024, 4);
+        for (int i = 0; i < 5000; i++) {
+            filter.add("order-" + i);
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("invoice-" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 100);
+    }
+}
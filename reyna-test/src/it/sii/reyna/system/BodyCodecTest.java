@@ -0,0 +1,46 @@
+package it.sii.reyna.system;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BodyCodecTest {
+
+    @Test
+    public void deflateSmallBodyShouldReturnNull() {
+        assertNull(BodyCodec.deflate("{\"a\":1}"));
+        assertNull(BodyCodec.deflate(null));
+    }
+
+    @Test
+    public void deflatedBodyShouldRoundTrip() {
+        String body = repeat("{\"temperature\":21.5,\"unit\":\"C\",\"city\":\"Bolzano \\u00e8\"}", 50);
+
+        byte[] deflated = BodyCodec.deflate(body);
+
+        assertNotNull(deflated);
+        assertTrue(deflated.length < body.length());
+        assertEquals(body, BodyCodec.inflate(deflated));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void inflateMalformedDataShouldThrow() {
+        BodyCodec.inflate(new byte[]{1, 2, 3, 4});
+    }
+
+    @Test
+    public void utf8LengthShouldMatchEncodedLength() throws Exception {
+        String body = "a\u00e8\u4f60\ud83d\ude00";
+
+        assertEquals(body.getBytes("UTF-8").length, BodyCodec.utf8Length(body));
+        assertEquals(0, BodyCodec.utf8Length(null));
+    }
+
+    private static String repeat(String value, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+}
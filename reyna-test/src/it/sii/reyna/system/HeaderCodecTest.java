@@ -0,0 +1,134 @@
+package it.sii.reyna.system;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeaderCodecTest {
+
+    @Test
+    public void encodeEmptyHeadersShouldReturnNull() {
+        assertNull(HeaderCodec.encode(new ArrayList<Header>()));
+        assertNull(HeaderCodec.encode(null));
+    }
+
+    @Test
+    public void decodeNullShouldReturnEmptyList() {
+        assertTrue(HeaderCodec.decode(null).isEmpty());
+    }
+
+    @Test
+    public void encodedHeadersShouldRoundTrip() {
+        List<Header> headers = new ArrayList<Header>();
+        headers.add(new Header("Content-Type", "application/json"));
+        headers.add(new Header("x-empty", ""));
+        headers.add(new Header("x-null", null));
+        headers.add(new Header("x-unicode", "gr\u00fc\u00dfe \u4f60\u597d"));
+
+        List<Header> decoded = HeaderCodec.decode(HeaderCodec.encode(headers));
+
+        assertEquals(headers.size(), decoded.size());
+        for (int i = 0; i < headers.size(); i++) {
+            assertEquals(headers.get(i).getKey(), decoded.get(i).getKey());
+            assertEquals(headers.get(i).getValue(), decoded.get(i).getValue());
+        }
+    }
+
+    @Test
+    public void dictionaryHeadersShouldDecodeToSharedInstances() {
+        final Header json = new Header(1L, "Content-Type", "application/json");
+        HeaderCodec.Dictionary dictionary = new HeaderCodec.Dictionary() {
+            public int idOf(Header header) {
+                return json.getKey().equals(header.getKey()) && json.getValue().equals(header.getValue()) ? 1 : 0;
+            }
+
+            public Header headerOf(int id) {
+                return json;
+            }
+        };
+        List<Header> headers = new ArrayList<Header>();
+        headers.add(new Header("Content-Type", "application/json"));
+        headers.add(new Header("x-null", null));
+
+        byte[] encoded = HeaderCodec.encode(headers, dictionary);
+        List<Header> decoded = HeaderCodec.decode(encoded, dictionary);
+
+        assertEquals(2, decoded.size());
+        assertSame(json, decoded.get(0));
+        assertEquals("x-null", decoded.get(1).getKey());
+        assertNull(decoded.get(1).getValue());
+        assertTrue(encoded.length < HeaderCodec.encode(headers).length);
+    }
+
+    @Test
+    public void messageShouldResolveDictionaryHeadersOnFirstAccess() throws Exception {
+        final Header json = new Header(1L, "Content-Type", "application/json");
+        final int[] lookups = new int[1];
+        HeaderCodec.Dictionary dictionary = new HeaderCodec.Dictionary() {
+            public int idOf(Header header) {
+                return 1;
+            }
+
+            public Header headerOf(int id) {
+                lookups[0]++;
+                return json;
+            }
+        };
+        List<Header> headers = new ArrayList<Header>();
+        headers.add(new Header("Content-Type", "application/json"));
+
+        Message message = new Message(new URI("https://www.google.com"), "body");
+        message.setEncodedHeaders(HeaderCodec.encode(headers, dictionary), dictionary);
+        assertEquals(0, lookups[0]);
+
+        assertSame(json, message.getHeaders().get(0));
+        assertSame(json, message.getHeaders().get(0));
+        assertEquals(1, lookups[0]);
+    }
+
+    @Test
+    public void messageWithDictionaryHeadersShouldSerializeThemResolved() throws Exception {
+        final Header json = new Header(1L, "Content-Type", "application/json");
+        HeaderCodec.Dictionary dictionary = new HeaderCodec.Dictionary() {
+            public int idOf(Header header) {
+                return 1;
+            }
+
+            public Header headerOf(int id) {
+                return json;
+            }
+        };
+        List<Header> headers = new ArrayList<Header>();
+        headers.add(new Header("Content-Type", "application/json"));
+        Message message = new Message(new URI("https://www.google.com"), "body");
+        message.setEncodedHeaders(HeaderCodec.encode(headers, dictionary), dictionary);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(message);
+        out.close();
+        Message copy = (Message) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertEquals(1, copy.getHeaders().size());
+        assertEquals("application/json", copy.getHeaders().get(0).getValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeTruncatedDataShouldThrow() {
+        List<Header> headers = new ArrayList<Header>();
+        headers.add(new Header("Content-Type", "application/json"));
+        byte[] encoded = HeaderCodec.encode(headers);
+
+        byte[] truncated = new byte[encoded.length - 3];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        HeaderCodec.decode(truncated);
+    }
+}
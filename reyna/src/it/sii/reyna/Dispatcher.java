@@ -22,6 +22,10 @@ public class Dispatcher {
 
     private static final String TAG = "Dispatcher";
 
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    static final int TIMEOUT_MILLISECONDS = 5000;
+
     public enum ResultStatus {
         OK, PERMANENT_ERROR, TEMPORARY_ERROR, BLACKOUT, NOTCONNECTED
     }
@@ -50,6 +54,19 @@ public class Dispatcher {
     }
 
     public static Result sendMessage(Context context, Message message) {
+        Clients clients = new Clients();
+        try {
+            return sendMessage(context, message, clients);
+        } finally {
+            clients.release();
+        }
+    }
+
+    /**
+     * Sends the message with a client from the given ones, so that the messages of one drain
+     * share a client per endpoint and credentials.
+     */
+    public static Result sendMessage(Context context, Message message, Clients clients) {
         Log.v(TAG, "sendMessage");
 
         ResultStatus resultStatus = Dispatcher.canSend(context);
@@ -57,11 +74,19 @@ public class Dispatcher {
             return new Result(resultStatus);
         }
 
+        addIdempotencyHeader(message);
+
+        if (message.getBodyFile() != null) {
+            return StreamingPost.post(message, message.getBodyFile());
+        }
+
+        if (message.isBinary()) {
+            return StreamingPost.post(message, message.getBinaryBody());
+        }
+
         RestClient client;
         try {
-            client = new RestClient(message.getUrl(), message.getUsername(),
-                                    message.getPassword(), 5000, null);
-
+            client = clients.get(message);
         } catch (Exception e) {
             Log.e(TAG, "Cannot create RestClient", e);
             return new Result(resultStatus, e.getMessage());
@@ -93,6 +118,65 @@ public class Dispatcher {
         }
     }
 
+    /**
+     * The RestClients of one drain, by url and stored credential id, each created on first use.
+     * Credential ids are only unique within one database, and stores without a Credential table
+     * leave them at 0, so a client is only reused while its username and password still match
+     * the message; otherwise it is replaced. Not thread-safe: each drain creates its own and
+     * releases it when done.
+     */
+    public static final class Clients {
+
+        private final Map<List<Object>, Client> clients = new HashMap<List<Object>, Client>();
+
+        RestClient get(Message message) throws Exception {
+            List<Object> key = Arrays.<Object>asList(message.getUrl(), message.getCredentialId());
+            Client client = this.clients.get(key);
+            if (client == null || !client.isFor(message)) {
+                client = new Client(message);
+                this.clients.put(key, client);
+            }
+            return client.restClient;
+        }
+
+        public void release() {
+            this.clients.clear();
+        }
+    }
+
+    private static final class Client {
+
+        private final String username;
+
+        private final String password;
+
+        private final RestClient restClient;
+
+        Client(Message message) throws Exception {
+            this.username = message.getUsername();
+            this.password = message.getPassword();
+            this.restClient = new RestClient(message.getUrl(), this.username, this.password, TIMEOUT_MILLISECONDS, null);
+        }
+
+        boolean isFor(Message message) {
+            return TextUtils.equals(this.username, message.getUsername())
+                    && TextUtils.equals(this.password, message.getPassword());
+        }
+    }
+
+    private static void addIdempotencyHeader(Message message) {
+        if (message.getIdempotencyKey() == null) {
+            return;
+        }
+
+        for (Header header : message.getHeaders()) {
+            if (IDEMPOTENCY_KEY_HEADER.equalsIgnoreCase(header.getKey())) {
+                return;
+            }
+        }
+        message.addHeader(new Header(IDEMPOTENCY_KEY_HEADER, message.getIdempotencyKey()));
+    }
+
     public static ResultStatus canSend(Context context) {
         return canSend(context, new GregorianCalendar());
     }
@@ -0,0 +1,164 @@
+package it.sii.reyna;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import it.sii.reyna.system.Header;
+import it.sii.reyna.system.HeaderCodec;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The header pairs of the queued messages, each stored once in the HeaderPair table and
+ * referenced from the message headers by id. Pairs are cached as they are used, and every
+ * message read back gets the same immutable {@link Header} instance for the same pair. Messages
+ * keep their references and resolve them the first time their headers are accessed.
+ * <p>
+ * Pairs are never deleted, so the dictionary is bounded instead: it only takes pairs of up to
+ * {@value #MAX_PAIR_LENGTH} characters, up to {@value #MAX_PAIRS} of them, and only once they
+ * repeat, so that unique headers such as request ids or timestamps do not fill it. Any other
+ * header is stored inline. Like {@link RepositoryStatements#endpointId}, a new pair is committed in a
+ * transaction of its own, so {@link #idOf} must not be called inside another transaction.
+ */
+final class HeaderDictionary implements HeaderCodec.Dictionary {
+
+    static final int MAX_PAIRS = 1024;
+
+    static final int MAX_PAIR_LENGTH = 256;
+
+    private final SQLiteDatabase db;
+
+    private final SQLiteStatement insert;
+
+    private final SQLiteStatement idByPair;
+
+    private final Map<List<String>, Integer> ids = new HashMap<List<String>, Integer>();
+
+    private final Map<Integer, Header> headers = new HashMap<Integer, Header>();
+
+    // pairs seen once since the database was opened, the least recent dropped first
+    private final Map<List<String>, Boolean> seen = new LinkedHashMap<List<String>, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<String>, Boolean> eldest) {
+            return this.size() > MAX_PAIRS;
+        }
+    };
+
+    // pairs in the table, -1 until first needed
+    private long size = -1;
+
+    // whether every pair in the table is cached
+    private boolean loaded;
+
+    HeaderDictionary(SQLiteDatabase db) {
+        this.db = db;
+        this.insert = db.compileStatement("INSERT OR IGNORE INTO HeaderPair (key, value) VALUES (?, ?)");
+        this.idByPair = db.compileStatement("SELECT id FROM HeaderPair WHERE key = ? AND value = ?");
+    }
+
+    public int idOf(Header header) {
+        String key = header.getKey();
+        String value = header.getValue();
+        if (key == null || value == null || key.length() + value.length() > MAX_PAIR_LENGTH) {
+            return 0;
+        }
+
+        List<String> pair = Arrays.asList(key, value);
+        synchronized (this) {
+            Integer id = this.ids.get(pair);
+            if (id != null) {
+                return id;
+            }
+            if (this.size() >= MAX_PAIRS || this.seen.put(pair, Boolean.TRUE) == null) {
+                return 0;
+            }
+            this.seen.remove(pair);
+        }
+
+        int id;
+        boolean added;
+        this.db.beginTransactionNonExclusive();
+        try {
+            synchronized (this) {
+                this.insert.bindString(1, key);
+                this.insert.bindString(2, value);
+                added = this.insert.executeInsert() != -1;
+                this.idByPair.bindString(1, key);
+                this.idByPair.bindString(2, value);
+                id = (int) this.idByPair.simpleQueryForLong();
+            }
+            this.db.setTransactionSuccessful();
+        } finally {
+            this.db.endTransaction();
+        }
+
+        synchronized (this) {
+            if (added) {
+                this.size++;
+            }
+            this.cache(id, key, value);
+        }
+        return id;
+    }
+
+    public synchronized Header headerOf(int id) {
+        Header header = this.headers.get(id);
+        if (header == null) {
+            this.load();
+            header = this.headers.get(id);
+        }
+        if (header == null) {
+            throw new IllegalStateException("Unknown header pair " + id);
+        }
+        return header;
+    }
+
+    /**
+     * Caches every pair in the table, so that the headers of the messages read back resolve
+     * without another query, even once the database is closed. Pairs added later are cached as
+     * they are added.
+     */
+    synchronized void load() {
+        if (this.loaded) {
+            return;
+        }
+
+        Cursor cursor = this.db.rawQuery("SELECT id, key, value FROM HeaderPair", null);
+        try {
+            while (cursor.moveToNext()) {
+                this.cache(cursor.getInt(0), cursor.getString(1), cursor.getString(2));
+            }
+            this.size = cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+        this.loaded = true;
+    }
+
+    private long size() {
+        if (this.size == -1) {
+            this.size = DatabaseUtils.longForQuery(this.db, "SELECT count(*) FROM HeaderPair", null);
+        }
+        return this.size;
+    }
+
+    private Header cache(int id, String key, String value) {
+        Header header = this.headers.get(id);
+        if (header == null) {
+            header = new Header((long) id, key, value);
+            this.headers.put(id, header);
+            this.ids.put(Arrays.asList(key, value), id);
+        }
+        return header;
+    }
+
+    void close() {
+        this.insert.close();
+        this.idByPair.close();
+    }
+}
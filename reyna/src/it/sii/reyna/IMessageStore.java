@@ -0,0 +1,93 @@
+package it.sii.reyna;
+
+import it.sii.reyna.system.Message;
+
+import java.net.URISyntaxException;
+import java.util.List;
+
+/**
+ * Storage engine of the message queue. {@link Repository} keeps the queue in SQLite;
+ * {@link it.sii.reyna.log.LogMessageStore} in append-only segment files.
+ * {@link MessageStores#open} returns the engine selected in the preferences.
+ * <p>
+ * A store is shared by the whole process: every open must be balanced by a {@link #close()}.
+ */
+public interface IMessageStore {
+
+    void setBodyCompression(boolean bodyCompression);
+
+    void insert(Message message);
+
+    /**
+     * Inserts the message, evicting the oldest messages first if the store would grow past {@code dbSizeLimit}.
+     */
+    void insert(Message message, long dbSizeLimit);
+
+    /**
+     * Inserts the messages as one write; {@code dbSizeLimit} is -1 for no limit.
+     */
+    void insertAll(List<Message> messages, long dbSizeLimit);
+
+    Message getNext() throws URISyntaxException;
+
+    List<Message> getNextBatch(int count) throws URISyntaxException;
+
+    /**
+     * Returns up to {@code count} messages after {@code position}, or from the head of the queue
+     * when it is null, stopping before the batch body size would exceed {@code maxBytes}.
+     * The first message is always returned, whatever its size.
+     */
+    List<Message> getNextBatchAfter(QueuePosition position, int count, long maxBytes) throws URISyntaxException;
+
+    /**
+     * Claims up to {@code count} messages for {@code worker}, in queue order and within
+     * {@code maxBytes} like {@link #getNextBatchAfter}, leasing them to it for {@code leaseMillis}.
+     * Messages under a lease that has not expired at {@code now} are neither claimed nor read,
+     * so concurrent workers never get the same message; an expired lease can be claimed again.
+     */
+    List<Message> claim(String worker, int count, long maxBytes, long now, long leaseMillis) throws URISyntaxException;
+
+    /**
+     * Ends the leases {@code worker} still holds on the messages, so that they can be claimed again.
+     */
+    void release(String worker, long[] ids);
+
+    void delete(Message message);
+
+    void deleteAll(long[] ids);
+
+    /**
+     * Deletes every message that expired at or before {@code now} and returns how many went.
+     */
+    int deleteExpired(long now);
+
+    void decrementMessageTries(Message message);
+
+    /**
+     * Rotates the password of {@code username}: every queued message sent as that user is sent
+     * with {@code password} from now on.
+     */
+    void updateCredentials(String username, String password);
+
+    /**
+     * Evicts the oldest messages until the queued bytes fit in {@code limit}.
+     */
+    void shrinkDb(long limit);
+
+    /**
+     * Returns unused space to the file system, doing a bounded amount of work per call; each
+     * engine sizes that work to its own storage.
+     */
+    void compact();
+
+    long getQueuedBytes();
+
+    long getAvailableMessagesCount();
+
+    /**
+     * Number of queued messages for the url.
+     */
+    long getAvailableMessagesCount(String url);
+
+    void close();
+}
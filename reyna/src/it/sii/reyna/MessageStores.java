@@ -0,0 +1,163 @@
+package it.sii.reyna;
+
+import android.content.Context;
+import android.util.Log;
+import it.sii.reyna.log.LogMessageStore;
+import it.sii.reyna.system.Message;
+import it.sii.reyna.system.Preferences;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens the storage engine selected with {@link it.sii.reyna.services.StoreService#setStorageEngine}.
+ * Each engine keeps its own files, so after a switch the first open moves the messages queued in the
+ * previous engine to the selected one, in batches, before returning it.
+ */
+public final class MessageStores {
+
+    private static final String TAG = "MessageStores";
+
+    public static final int SQLITE = 0;
+
+    public static final int SEGMENTED_LOG = 1;
+
+    public static final int PARTITIONED_SQLITE = 2;
+
+    private static final int MIGRATION_BATCH_SIZE = 100;
+
+    private static final String MIGRATION_WORKER = "migration";
+
+    // the reference taken by openHeld, and the engine of its store
+    private static IMessageStore held = null;
+
+    private static int heldEngine;
+
+    private MessageStores() {
+    }
+
+    /**
+     * Returns the process-wide store of the selected engine. Every call must be balanced by a
+     * call to {@link IMessageStore#close()}.
+     */
+    public static IMessageStore open(Context context) {
+        Preferences preferences = new Preferences(context);
+        int engine = preferences.getStorageEngine();
+        synchronized (MessageStores.class) {
+            int queueEngine = preferences.getQueueEngine();
+            if (queueEngine != engine) {
+                migrate(context, queueEngine, engine);
+                preferences.saveQueueEngine(engine);
+            }
+        }
+        return open(context, engine);
+    }
+
+    /**
+     * Like {@link #open(Context)}, but this class keeps a reference of its own to the store, so that
+     * the store stays open between calls and frequent reads, such as the queue depth, do not reopen
+     * it every time. The reference moves to the new store after an engine switch.
+     */
+    public static IMessageStore openHeld(Context context) {
+        int engine = new Preferences(context).getStorageEngine();
+        synchronized (MessageStores.class) {
+            if (held == null || heldEngine != engine) {
+                if (held != null) {
+                    held.close();
+                    held = null;
+                }
+                held = open(context);
+                heldEngine = engine;
+            }
+            return open(context, engine);
+        }
+    }
+
+    private static IMessageStore open(Context context, int engine) {
+        switch (engine) {
+            case SEGMENTED_LOG:
+                return LogMessageStore.open(context);
+            case PARTITIONED_SQLITE:
+                return PartitionedRepository.open(context);
+            default:
+                return Repository.open(context);
+        }
+    }
+
+    /**
+     * Moves the queued messages from one engine to the other, each batch inserted before it is
+     * deleted, so that a crash halfway can only leave a batch in both. Leases are ignored: nothing
+     * drains the old engine any more. The partitioned engine adopts the database of the default
+     * one, so nothing has to move between those two in that direction. Back the other way, the
+     * messages of that database, while a partition uses it in place, are already where they go:
+     * they stay claimed until the end, so that they are neither moved nor read again.
+     */
+    private static void migrate(Context context, int from, int to) {
+        if (from == SQLITE && to == PARTITIONED_SQLITE) {
+            Log.v(TAG, "migrate, the partitioned store adopts the queue");
+            return;
+        }
+
+        IMessageStore source = open(context, from);
+        IMessageStore target = open(context, to);
+        PartitionedRepository shared = from == PARTITIONED_SQLITE && to == SQLITE
+                && ((PartitionedRepository) source).sharesLegacyDatabase() ? (PartitionedRepository) source : null;
+        List<Long> staying = new ArrayList<Long>();
+        try {
+            long remaining = source.getAvailableMessagesCount();
+            Log.i(TAG, String.format("migrate, engine %d to %d, messages: %d", from, to, remaining));
+            while (remaining > 0) {
+                List<Message> batch = source.claim(MIGRATION_WORKER, (int) Math.min(MIGRATION_BATCH_SIZE, remaining),
+                        Long.MAX_VALUE, Long.MAX_VALUE, 0);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                remaining -= batch.size();
+
+                List<Message> moving = new ArrayList<Message>(batch.size());
+                for (Message message : batch) {
+                    if (shared != null && shared.isInLegacyDatabase(message.getId())) {
+                        staying.add(message.getId());
+                    } else {
+                        moving.add(message);
+                    }
+                }
+                if (!moving.isEmpty()) {
+                    move(source, target, moving);
+                }
+            }
+        } catch (URISyntaxException e) {
+            Log.e(TAG, "migrate, leaving the rest of the queue in engine " + from, e);
+        } finally {
+            try {
+                source.release(MIGRATION_WORKER, toArray(staying));
+            } finally {
+                target.close();
+                source.close();
+            }
+        }
+    }
+
+    private static void move(IMessageStore source, IMessageStore target, List<Message> messages) {
+        List<Long> ids = new ArrayList<Long>(messages.size());
+        for (Message message : messages) {
+            ids.add(message.getId());
+        }
+        try {
+            target.insertAll(messages, -1);
+        } catch (RuntimeException e) {
+            source.release(MIGRATION_WORKER, toArray(ids));
+            throw e;
+        }
+        source.deleteAll(toArray(ids));
+    }
+
+    private static long[] toArray(List<Long> ids) {
+        long[] array = new long[ids.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ids.get(i);
+        }
+        return array;
+    }
+}
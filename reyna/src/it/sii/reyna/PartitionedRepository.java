@@ -0,0 +1,687 @@
+package it.sii.reyna;
+
+import android.content.Context;
+import android.util.Log;
+import it.sii.reyna.system.Message;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The message queue split over rolling SQLite database files, each a {@link Repository} of its own,
+ * shared by the whole process (see {@link #open}). Messages go to the newest partition; a new one is
+ * started once it holds {@value #PARTITION_BYTES} bytes or is an hour old. Reads merge the partitions
+ * in queue order, and eviction deletes the oldest partition files outright instead of deleting rows
+ * and vacuuming. Drained partitions are deleted by {@link #compact}.
+ * <p>
+ * Partition n numbers its messages from n &lt;&lt; {@value #PARTITION_ID_BITS}, so ids are unique and
+ * increasing across partitions, and the partition of a message is known from its id alone. An existing
+ * {@code reyna.db} is taken over as partition 0 and renamed like the others, so that it rolls over an hour
+ * after it was taken over. Enqueues and reads run concurrently as in a single repository; only adding and
+ * dropping partitions takes the partition lock exclusively.
+ */
+public class PartitionedRepository implements IMessageStore {
+
+    private static final String TAG = "PartitionedRepository";
+
+    private static final String LEGACY_DATABASE_NAME = "reyna.db";
+
+    // reyna-<partition>-<creation time>.db
+    private static final Pattern PARTITION_NAME = Pattern.compile("reyna-([0-9]+)-([0-9]+)\\.db");
+
+    private static final int PARTITION_ID_BITS = 40;
+
+    public static final long PARTITION_BYTES = 512 * 1024; // 512Kb
+
+    public static final long PARTITION_MILLIS = 60 * 60 * 1000; // 1 hour
+
+    private static final int SIZE_DIFFERENCE_TO_START_CLEANING = 307200; //300Kb in bytes
+
+    // queue order: descending priority, then id
+    private static final Comparator<Message> QUEUE_ORDER = new Comparator<Message>() {
+        @Override
+        public int compare(Message lhs, Message rhs) {
+            if (lhs.getPriority() != rhs.getPriority()) {
+                return lhs.getPriority() > rhs.getPriority() ? -1 : 1;
+            }
+            return lhs.getId().compareTo(rhs.getId());
+        }
+    };
+
+    private static PartitionedRepository instance = null;
+
+    private static int referenceCount = 0;
+
+    private final Context context;
+
+    private final long partitionBytes;
+
+    private final long partitionMillis;
+
+    // by partition number, oldest first; the last one takes the enqueues
+    private final TreeMap<Long, Partition> partitions = new TreeMap<Long, Partition>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private volatile boolean bodyCompression = true;
+
+    PartitionedRepository(Context context, long partitionBytes, long partitionMillis) {
+        this.context = context;
+        this.partitionBytes = partitionBytes;
+        this.partitionMillis = partitionMillis;
+        this.load();
+    }
+
+    /**
+     * Returns the process-wide partitioned repository, opening it on first use.
+     * Every call must be balanced by a call to {@link #close()}; the partitions
+     * are closed only when the last reference is released.
+     */
+    public static PartitionedRepository open(Context context) {
+        synchronized (PartitionedRepository.class) {
+            if (instance == null) {
+                Log.v(TAG, "open, creating shared partitioned repository");
+                instance = new PartitionedRepository(context.getApplicationContext(), PARTITION_BYTES, PARTITION_MILLIS);
+            }
+
+            referenceCount++;
+            Log.v(TAG, "open, references: " + referenceCount);
+            return instance;
+        }
+    }
+
+    private void load() {
+        long now = System.currentTimeMillis();
+        boolean legacy = false;
+        for (String name : this.context.databaseList()) {
+            if (LEGACY_DATABASE_NAME.equals(name)) {
+                legacy = true;
+                continue;
+            }
+
+            Matcher matcher = PARTITION_NAME.matcher(name);
+            if (matcher.matches()) {
+                long number = Long.parseLong(matcher.group(1));
+                this.partitions.put(number, this.partition(number, Long.parseLong(matcher.group(2))));
+            }
+        }
+
+        if (legacy) {
+            this.adoptLegacyDatabase(now);
+        }
+        if (this.partitions.isEmpty()) {
+            this.partitions.put(1L, this.partition(1, now));
+        }
+        Log.v(TAG, "load, partitions: " + this.partitions.keySet());
+    }
+
+    /**
+     * Takes over {@code reyna.db} as partition 0 created {@code now}, renaming it to the partition
+     * name so that its age survives restarts. While the shared {@link Repository} has it open, it
+     * is used in place and renamed on a later load. A drained partition 0 left by an earlier takeover
+     * is dropped first; one that still holds messages keeps the number, and {@code reyna.db} waits.
+     */
+    private void adoptLegacyDatabase(long now) {
+        Partition existing = this.partitions.get(0L);
+        if (existing != null) {
+            if (existing.repository.getAvailableMessagesCount() > 0) {
+                Log.w(TAG, "adoptLegacyDatabase, partition 0 is still queued, leaving " + LEGACY_DATABASE_NAME);
+                return;
+            }
+            this.drop(existing);
+        }
+
+        if (!Repository.isOpen() && this.renameLegacyDatabase(partitionName(0, now))) {
+            this.partitions.put(0L, this.partition(0, now));
+        } else {
+            this.partitions.put(0L, new Partition(0, now, new Repository(this.context, LEGACY_DATABASE_NAME, 1)));
+        }
+    }
+
+    /**
+     * Renames the closed legacy database and its write-ahead log, if any; the shared memory index
+     * is rebuilt from the log, so it is deleted.
+     */
+    private boolean renameLegacyDatabase(String name) {
+        File legacy = this.context.getDatabasePath(LEGACY_DATABASE_NAME);
+        File adopted = this.context.getDatabasePath(name);
+        File legacyWal = new File(legacy.getPath() + "-wal");
+        File adoptedWal = new File(adopted.getPath() + "-wal");
+
+        boolean walRenamed = false;
+        if (legacyWal.exists()) {
+            if (!legacyWal.renameTo(adoptedWal)) {
+                Log.w(TAG, "renameLegacyDatabase, cannot rename " + legacyWal);
+                return false;
+            }
+            walRenamed = true;
+        }
+        new File(legacy.getPath() + "-shm").delete();
+
+        if (!legacy.renameTo(adopted)) {
+            Log.w(TAG, "renameLegacyDatabase, cannot rename " + legacy);
+            if (walRenamed) {
+                adoptedWal.renameTo(legacyWal);
+            }
+            return false;
+        }
+        Log.v(TAG, "renameLegacyDatabase, " + LEGACY_DATABASE_NAME + " is now " + name);
+        return true;
+    }
+
+    /**
+     * Tells whether partition 0 is {@code reyna.db} used in place, the database of the default engine.
+     */
+    boolean sharesLegacyDatabase() {
+        this.lock.readLock().lock();
+        try {
+            Partition first = this.partitions.get(0L);
+            return first != null && isLegacyDatabase(first);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Tells whether the message is in {@code reyna.db}, used in place as partition 0.
+     */
+    boolean isInLegacyDatabase(long id) {
+        return id >> PARTITION_ID_BITS == 0 && this.sharesLegacyDatabase();
+    }
+
+    private static boolean isLegacyDatabase(Partition partition) {
+        return LEGACY_DATABASE_NAME.equals(partition.repository.getDatabaseName());
+    }
+
+    private Partition partition(long number, long createdAt) {
+        return new Partition(number, createdAt,
+                new Repository(this.context, partitionName(number, createdAt), number << PARTITION_ID_BITS));
+    }
+
+    private static String partitionName(long number, long createdAt) {
+        return String.format("reyna-%d-%d.db", number, createdAt);
+    }
+
+    public void setBodyCompression(boolean bodyCompression) {
+        this.bodyCompression = bodyCompression;
+        this.lock.readLock().lock();
+        try {
+            for (Partition partition : this.partitions.values()) {
+                partition.repository.setBodyCompression(bodyCompression);
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public void insert(Message message) {
+        this.insertAll(Collections.singletonList(message), -1);
+    }
+
+    public void insert(Message message, long dbSizeLimit) {
+        this.insertAll(Collections.singletonList(message), dbSizeLimit);
+    }
+
+    /**
+     * Inserts the messages into the newest partition, then drops the oldest partitions if the
+     * queue grew past {@code dbSizeLimit} (-1 for no limit), measured in stored bytes like the
+     * partitions do. Only once the newest partition is the last one left does it evict single
+     * messages, as a {@link Repository} does.
+     */
+    public void insertAll(List<Message> messages, long dbSizeLimit) {
+        Log.v(TAG, "insertAll, messages: " + messages.size());
+        this.rollIfDue();
+        this.insertIntoNewest(messages, dbSizeLimit);
+        if (dbSizeLimit != -1) {
+            this.dropOldest(dbSizeLimit - SIZE_DIFFERENCE_TO_START_CLEANING);
+        }
+    }
+
+    private void insertIntoNewest(List<Message> messages, long dbSizeLimit) {
+        this.lock.readLock().lock();
+        try {
+            Repository newest = this.partitions.lastEntry().getValue().repository;
+            List<Message> accepted = new ArrayList<Message>(messages.size());
+            for (Message message : messages) {
+                if (!this.isQueuedInAnyPartition(message)) {
+                    accepted.add(message);
+                }
+            }
+            if (accepted.isEmpty()) {
+                return;
+            }
+
+            // with older partitions left, those are dropped first
+            long limit = this.partitions.size() == 1 ? dbSizeLimit : -1;
+            if (accepted.size() == 1 && limit == -1) {
+                newest.insert(accepted.get(0));
+            } else if (accepted.size() == 1) {
+                newest.insert(accepted.get(0), limit);
+            } else {
+                newest.insertAll(accepted, limit);
+            }
+
+            // after the insert, so that a failure leaves the replaced message rather than neither
+            for (Message message : accepted) {
+                if (message.getCoalesceKey() != null) {
+                    for (Partition partition : this.partitions.headMap(this.partitions.lastKey()).values()) {
+                        partition.repository.deleteCoalesced(message.getCoalesceKey());
+                    }
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private boolean isQueuedInAnyPartition(Message message) {
+        if (message.getIdempotencyKey() == null) {
+            return false;
+        }
+
+        for (Partition partition : this.partitions.values()) {
+            if (partition.repository.isQueued(message)) {
+                Log.v(TAG, "insertAll, duplicate idempotency key: " + message.getIdempotencyKey());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts a new partition when the newest one is full or old enough.
+     */
+    private void rollIfDue() {
+        this.lock.readLock().lock();
+        try {
+            if (!this.isRollDue(this.partitions.lastEntry().getValue())) {
+                return;
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        this.lock.writeLock().lock();
+        try {
+            Partition newest = this.partitions.lastEntry().getValue();
+            if (this.isRollDue(newest)) {
+                Partition partition = this.partition(newest.number + 1, System.currentTimeMillis());
+                partition.repository.setBodyCompression(this.bodyCompression);
+                this.partitions.put(partition.number, partition);
+                Log.v(TAG, "rollIfDue, new partition " + partition.number);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private boolean isRollDue(Partition newest) {
+        if (newest.repository.getQueuedBytes() >= this.partitionBytes) {
+            return true;
+        }
+        return System.currentTimeMillis() - newest.createdAt >= this.partitionMillis
+                && newest.repository.getAvailableMessagesCount() > 0;
+    }
+
+    public Message getNext() throws URISyntaxException {
+        List<Message> messages = this.getNextBatch(1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    public List<Message> getNextBatch(int count) throws URISyntaxException {
+        return this.getNextBatchAfter(null, count, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads the batch from every partition and merges them in queue order. Ids increase across
+     * partitions, so the same position applies to all of them.
+     */
+    public List<Message> getNextBatchAfter(QueuePosition position, int count, long maxBytes) throws URISyntaxException {
+        Log.v(TAG, String.format("getNextBatchAfter, position: %s, count: %d, maxBytes: %d", position, count, maxBytes));
+
+        List<Message> candidates = new ArrayList<Message>();
+        this.lock.readLock().lock();
+        try {
+            for (Partition partition : this.partitions.values()) {
+                candidates.addAll(partition.repository.getNextBatchAfter(position, count, maxBytes));
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return merge(candidates, count, maxBytes);
+    }
+
+    /**
+     * Claims a batch in every partition, keeps the first ones in queue order and releases the others.
+     */
+    public List<Message> claim(String worker, int count, long maxBytes, long now, long leaseMillis) throws URISyntaxException {
+        Log.v(TAG, String.format("claim, worker: %s, count: %d, maxBytes: %d", worker, count, maxBytes));
+
+        List<Message> candidates = new ArrayList<Message>();
+        this.lock.readLock().lock();
+        try {
+            for (Partition partition : this.partitions.values()) {
+                candidates.addAll(partition.repository.claim(worker, count, maxBytes, now, leaseMillis));
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        List<Message> messages = merge(candidates, count, maxBytes);
+        if (messages.size() < candidates.size()) {
+            List<Message> extra = candidates.subList(messages.size(), candidates.size());
+            long[] ids = new long[extra.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = extra.get(i).getId();
+            }
+            this.release(worker, ids);
+        }
+        return messages;
+    }
+
+    /**
+     * Releases the ids in every partition: the ids of the others match no row.
+     */
+    public void release(String worker, long[] ids) {
+        if (ids == null || ids.length == 0)
+            return;
+
+        this.lock.readLock().lock();
+        try {
+            for (Partition partition : this.partitions.values()) {
+                partition.repository.release(worker, ids);
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sorts the candidates in queue order and returns the first ones that fit in {@code count} and in
+     * {@code maxBytes} of stored size, the measure each partition cut its batch with.
+     */
+    private static List<Message> merge(List<Message> candidates, int count, long maxBytes) {
+        Collections.sort(candidates, QUEUE_ORDER);
+
+        List<Message> messages = new ArrayList<Message>(Math.min(count, candidates.size()));
+        long bytes = 0;
+        for (Message message : candidates) {
+            bytes += message.getStoredSize();
+            if (messages.size() == count || (!messages.isEmpty() && bytes > maxBytes)) {
+                break;
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    public void delete(Message message) {
+        if (message == null || message.getId() == null)
+            return;
+
+        this.lock.readLock().lock();
+        try {
+            Partition partition = this.partitionOf(message.getId());
+            if (partition != null) {
+                partition.repository.delete(message);
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes the messages with one {@link Repository#deleteAll} per partition.
+     */
+    public void deleteAll(long[] ids) {
+        if (ids == null || ids.length == 0)
+            return;
+
+        long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        this.lock.readLock().lock();
+        try {
+            // sorted ids come partition by partition
+            int start = 0;
+            while (start < sorted.length) {
+                long number = sorted[start] >>> PARTITION_ID_BITS;
+                int end = start + 1;
+                while (end < sorted.length && sorted[end] >>> PARTITION_ID_BITS == number) {
+                    end++;
+                }
+
+                Partition partition = this.partitions.get(number);
+                if (partition != null) {
+                    partition.repository.deleteAll(Arrays.copyOfRange(sorted, start, end));
+                }
+                start = end;
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public int deleteExpired(long now) {
+        this.lock.readLock().lock();
+        try {
+            int deleted = 0;
+            for (Partition partition : this.partitions.values()) {
+                deleted += partition.repository.deleteExpired(now);
+            }
+            return deleted;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public void decrementMessageTries(Message message) {
+        this.lock.readLock().lock();
+        try {
+            Partition partition = this.partitionOf(message.getId());
+            if (partition != null) {
+                partition.repository.decrementMessageTries(message);
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public void updateCredentials(String username, String password) {
+        this.lock.readLock().lock();
+        try {
+            for (Partition partition : this.partitions.values()) {
+                partition.repository.updateCredentials(username, password);
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the oldest partitions until the queued bytes fit in {@code limit} minus the cleaning
+     * margin; if the newest partition alone is too large, it evicts its oldest messages.
+     */
+    public void shrinkDb(long limit) {
+        Log.v(TAG, "shrinkDb, limit: " + limit);
+        this.dropOldest(limit - SIZE_DIFFERENCE_TO_START_CLEANING);
+
+        this.lock.readLock().lock();
+        try {
+            if (this.partitions.size() == 1) {
+                this.partitions.lastEntry().getValue().repository.shrinkDb(limit);
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drops whole partitions, oldest first, until the queued bytes are at most {@code bytes}.
+     * The newest partition is never dropped, nor is {@code reyna.db} while it is shared.
+     */
+    private void dropOldest(long bytes) {
+        this.lock.writeLock().lock();
+        try {
+            long queued = this.getQueuedBytes();
+            for (Partition oldest : new ArrayList<Partition>(this.partitions.headMap(this.partitions.lastKey()).values())) {
+                if (queued <= bytes) {
+                    break;
+                }
+                if (!this.isDroppable(oldest)) {
+                    Log.w(TAG, "dropOldest, keeping " + LEGACY_DATABASE_NAME + ", it is open");
+                    continue;
+                }
+                long dropped = oldest.repository.getQueuedBytes();
+                Log.w(TAG, String.format("dropOldest, dropping partition %d, bytes: %d", oldest.number, dropped));
+                this.drop(oldest);
+                queued -= dropped;
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes the drained partitions but the newest and a shared {@code reyna.db}, then compacts the ones left.
+     */
+    public void compact() {
+        this.lock.writeLock().lock();
+        try {
+            for (Partition partition : new ArrayList<Partition>(this.partitions.headMap(this.partitions.lastKey()).values())) {
+                if (this.isDroppable(partition) && partition.repository.getAvailableMessagesCount() == 0) {
+                    Log.v(TAG, "compact, dropping drained partition " + partition.number);
+                    this.drop(partition);
+                }
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+
+        this.lock.readLock().lock();
+        try {
+            for (Partition partition : this.partitions.values()) {
+                partition.repository.compact();
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@code reyna.db} used in place is left to the rename on a later load while the shared
+     * {@link Repository} has it open; deleting it would pull the database from under that repository.
+     */
+    private boolean isDroppable(Partition partition) {
+        return !isLegacyDatabase(partition) || !Repository.isOpen();
+    }
+
+    private void drop(Partition partition) {
+        this.partitions.remove(partition.number);
+        String name = partition.repository.getDatabaseName();
+        partition.repository.deleteBodyFiles();
+        partition.repository.close();
+        if (!this.context.deleteDatabase(name)) {
+            Log.w(TAG, "drop, cannot delete " + name);
+        }
+    }
+
+    public long getQueuedBytes() {
+        this.lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (Partition partition : this.partitions.values()) {
+                bytes += partition.repository.getQueuedBytes();
+            }
+            return bytes;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public long getAvailableMessagesCount(String url) {
+        this.lock.readLock().lock();
+        try {
+            long count = 0;
+            for (Partition partition : this.partitions.values()) {
+                count += partition.repository.getAvailableMessagesCount(url);
+            }
+            return count;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public long getAvailableMessagesCount() {
+        this.lock.readLock().lock();
+        try {
+            long count = 0;
+            for (Partition partition : this.partitions.values()) {
+                count += partition.repository.getAvailableMessagesCount();
+            }
+            return count;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Number of partition files, the newest included.
+     */
+    public int getPartitionCount() {
+        this.lock.readLock().lock();
+        try {
+            return this.partitions.size();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public void close() {
+        synchronized (PartitionedRepository.class) {
+            if (this == instance) {
+                referenceCount--;
+                Log.v(TAG, "close, references: " + referenceCount);
+                if (referenceCount > 0) {
+                    return;
+                }
+
+                instance = null;
+                referenceCount = 0;
+            }
+
+            this.lock.writeLock().lock();
+            try {
+                for (Partition partition : this.partitions.values()) {
+                    partition.repository.close();
+                }
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private Partition partitionOf(long id) {
+        return this.partitions.get(id >>> PARTITION_ID_BITS);
+    }
+
+    private static final class Partition {
+        final long number;
+        final long createdAt;
+        final Repository repository;
+
+        Partition(long number, long createdAt, Repository repository) {
+            this.number = number;
+            this.createdAt = createdAt;
+            this.repository = repository;
+        }
+    }
+}
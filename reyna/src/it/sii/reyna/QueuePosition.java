@@ -0,0 +1,89 @@
+package it.sii.reyna;
+
+import it.sii.reyna.system.Message;
+
+import java.util.List;
+
+/**
+ * Where a reader stands in the queue, which is ordered by descending priority and then by id.
+ * Besides the last message read in that order, it remembers the highest id seen so far: a
+ * message queued later with a higher priority than the current one would sort before the
+ * position, and is picked up on the next read instead of waiting for the following drain.
+ */
+public final class QueuePosition {
+
+    private final int priority;
+
+    private final long id;
+
+    private final long maxSeenId;
+
+    public QueuePosition(int priority, long id, long maxSeenId) {
+        this.priority = priority;
+        this.id = id;
+        this.maxSeenId = maxSeenId;
+    }
+
+    /**
+     * Returns the position after reading {@code batch} from {@code previous}, which is null
+     * when reading from the head of the queue.
+     */
+    public static QueuePosition after(QueuePosition previous, List<Message> batch) {
+        QueuePosition position = previous;
+        for (Message message : batch) {
+            long maxSeenId = position == null ? message.getId() : Math.max(position.maxSeenId, message.getId());
+            if (position == null || message.getPriority() <= position.priority) {
+                // messages are returned in queue order, so the last one in order is the new position
+                position = new QueuePosition(message.getPriority(), message.getId(), maxSeenId);
+            } else {
+                // a late arrival jumping ahead of the position, which stays where it was
+                position = new QueuePosition(position.priority, position.id, maxSeenId);
+            }
+        }
+        return position;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getMaxSeenId() {
+        return maxSeenId;
+    }
+
+    String selection() {
+        return "where (priority < ? or (priority = ? and id > ?) or (priority > ? and id > ?)) ";
+    }
+
+    String[] args(int count) {
+        String priority = String.valueOf(this.priority);
+        return new String[]{priority, priority, String.valueOf(this.id), priority, String.valueOf(this.maxSeenId),
+                String.valueOf(count)};
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof QueuePosition)) return false;
+
+        QueuePosition other = (QueuePosition) o;
+        return this.priority == other.priority && this.id == other.id && this.maxSeenId == other.maxSeenId;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = this.priority;
+        result = 31 * result + (int) (this.id ^ (this.id >>> 32));
+        result = 31 * result + (int) (this.maxSeenId ^ (this.maxSeenId >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("QueuePosition(priority: %d, id: %d, maxSeenId: %d)", this.priority, this.id, this.maxSeenId);
+    }
+}
@@ -1,63 +1,601 @@
 package it.sii.reyna;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
+import it.sii.reyna.system.BloomFilter;
+import it.sii.reyna.system.BodyCodec;
+import it.sii.reyna.system.BodyFileStore;
 import it.sii.reyna.system.Header;
+import it.sii.reyna.system.HeaderCodec;
 import it.sii.reyna.system.Message;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class Repository extends SQLiteOpenHelper {
+/**
+ * The message queue, in a SQLite database shared by the whole process (see {@link #open}).
+ * <p>
+ * Readers take no lock: with write-ahead logging they run on their own connections and see
+ * a consistent snapshot. Every write is a short transaction, so writers are serialized by
+ * SQLite alone; bodies are encoded before the transaction starts. Shrinking and compaction
+ * are serialized with each other by a separate lock and vacuum in small slices, so they never
+ * hold back an enqueue for long.
+ */
+public class Repository extends SQLiteOpenHelper implements IMessageStore {
 
     private static final String DATABASE_NAME = "reyna.db";
 
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 19;
 
     private static final String TAG = "Repository";
 
-    private static final Lock lock = new ReentrantLock();
 
     private static final int SIZE_DIFFERENCE_TO_START_CLEANING = 307200; //300Kb in bytes
 
+    private static final int INCREMENTAL_VACUUM_PAGES = 128;
+
+    private static final int INCREMENTAL_VACUUM_SLICE_PAGES = 32;
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    // bodies larger than this are kept in files, away from the CursorWindow and the row size
+    public static final long BODY_FILE_THRESHOLD = 256 * 1024; // 256Kb
+
+    private static final String BODY_FILE_DIRECTORY = "reyna_bodies";
+
+    // 8Kb, under 1% false positives up to ~6000 queued keys
+    private static final int IDEMPOTENCY_FILTER_BITS = 64 * 1024;
+
+    private static final int IDEMPOTENCY_FILTER_HASHES = 4;
+
+    // matches the Message_priority index, so the dequeue never sorts
+    private static final String QUEUE_ORDER = "order by priority desc, id";
+
+
+    private static Repository instance = null;
+
+    private static int referenceCount = 0;
+
+    private volatile boolean bodyCompression = true;
+
+    private volatile RepositoryStatements statements = null;
+
+    private volatile BloomFilter idempotencyKeys = null;
+
+    // serializes shrinking and compaction with each other, never with enqueues or the drain
+    private final ReentrantLock maintenance = new ReentrantLock();
+
+    private final BodyFileStore bodyFiles;
+
+    // id of the first message of a new database
+    private final long firstId;
+
+    /**
+     * A repository of its own on the default database, outside the shared instance: it takes no
+     * part in the reference count and {@link #close()} closes it right away. Every instance keeps
+     * its own connections, so prefer {@link #open(Context)}.
+     *
+     * @deprecated use {@link #open(Context)} and balance it with {@link #close()}.
+     */
+    @Deprecated
     public Repository(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, 1);
+    }
+
+    /**
+     * A repository on its own database file, as a partition of a {@link PartitionedRepository}.
+     * A new database numbers its messages from {@code firstId}, so that ids never repeat across partitions.
+     */
+    Repository(Context context, String name, long firstId) {
+        super(context, name, null, DATABASE_VERSION);
+        this.bodyFiles = new BodyFileStore(context.getDir(BODY_FILE_DIRECTORY, Context.MODE_PRIVATE));
+        this.firstId = firstId;
+    }
+
+    /**
+     * Whether the process-wide repository is open.
+     */
+    static boolean isOpen() {
+        synchronized (Repository.class) {
+            return instance != null;
+        }
+    }
+
+    /**
+     * Returns the process-wide repository, opening it on first use.
+     * Every call must be balanced by a call to {@link #close()}; the underlying
+     * database is closed only when the last reference is released.
+     */
+    public static Repository open(Context context) {
+        synchronized (Repository.class) {
+            if (instance == null) {
+                Log.v(TAG, "open, creating shared repository");
+                instance = new Repository(context.getApplicationContext());
+            }
+
+            referenceCount++;
+            Log.v(TAG, "open, references: " + referenceCount);
+            return instance;
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         Log.v(TAG, "onCreate");
+        this.createEndpoints(db);
+        this.createCredentials(db);
+        this.createHeaderPairs(db);
         db.execSQL("CREATE TABLE Message (" +
                    "  id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                   "  url TEXT, " +
+                   "  endpoint_id INTEGER NOT NULL REFERENCES Endpoint (id), " +
                    "  body TEXT, " +
-                   "  username TEXT DEFAULT NULL, " +
-                   "  password TEXT DEFAULT NULL, " +
-                   "  tries_left DEFAULT 100);");
-        db.execSQL("CREATE TABLE Header (id INTEGER PRIMARY KEY AUTOINCREMENT, messageid INTEGER, key TEXT, value TEXT, FOREIGN KEY(messageid) REFERENCES message(id));");
+                   "  credential_id INTEGER DEFAULT NULL REFERENCES Credential (id), " +
+                   "  tries_left DEFAULT 100, " +
+                   "  headers BLOB DEFAULT NULL, " +
+                   "  codec INTEGER DEFAULT 0, " +
+                   "  size INTEGER NOT NULL DEFAULT 0, " +
+                   "  priority INTEGER NOT NULL DEFAULT 0, " +
+                   "  expires_at INTEGER DEFAULT NULL, " +
+                   "  idempotency_key TEXT DEFAULT NULL, " +
+                   "  coalesce_key TEXT DEFAULT NULL, " +
+                   "  claimed_by TEXT DEFAULT NULL, " +
+                   "  lease_until INTEGER NOT NULL DEFAULT 0);");
+        this.createPriorityIndex(db);
+        this.createEndpointIndex(db);
+        this.createExpiryIndex(db);
+        this.createLeaseIndex(db);
+        this.createIdempotencyKeyIndex(db);
+        this.createCoalescing(db);
+        this.createQueueStats(db);
+        this.createQueueDepth(db);
+        this.createDeletedBodyFiles(db);
+        if (this.firstId > 1) {
+            db.execSQL("INSERT INTO sqlite_sequence (name, seq) VALUES ('Message', ?);", new Object[]{this.firstId - 1});
+        }
+    }
+
+    /**
+     * Urls are interned in the Endpoint table, so a message row only holds the endpoint id.
+     */
+    private void createEndpoints(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE Endpoint (" +
+                   "  id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                   "  url TEXT NOT NULL UNIQUE);");
+    }
+
+    /**
+     * Each distinct username and password pair is stored once and referenced by its messages,
+     * so that changing a password is a single row update. Like endpoints, credentials are never deleted.
+     */
+    private void createCredentials(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE Credential (" +
+                   "  id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                   "  username TEXT, " +
+                   "  password TEXT);");
+        db.execSQL("CREATE INDEX Credential_username ON Credential (username, password);");
+    }
+
+    /**
+     * The message headers blob references these pairs by id, see {@link HeaderDictionary}.
+     */
+    private void createHeaderPairs(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE HeaderPair (" +
+                   "  id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                   "  key TEXT NOT NULL, " +
+                   "  value TEXT NOT NULL, " +
+                   "  UNIQUE (key, value));");
+    }
+
+    private void createPriorityIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX Message_priority ON Message (priority DESC, id);");
+    }
+
+    // per endpoint oldest message, counts and eviction are all seeks on this index
+    private void createEndpointIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX Message_endpoint ON Message (endpoint_id, id);");
+    }
+
+    // the expiry sweep is a range seek on this index; messages that never expire sort first, as NULLs
+    private void createExpiryIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX Message_expires_at ON Message (expires_at);");
+    }
+
+    private void createLeaseIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX Message_lease_until ON Message (lease_until);");
+    }
+
+    // messages without a key are NULLs, which never conflict
+    private void createIdempotencyKeyIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE UNIQUE INDEX Message_idempotency_key ON Message (idempotency_key);");
+    }
+
+    /**
+     * A message with a coalesce key replaces the queued one with the same key. The replacement
+     * is done by a trigger, so the insert stays a single statement, and the delete it runs fires
+     * the stats and body file triggers, which a REPLACE conflict resolution would not.
+     */
+    private void createCoalescing(SQLiteDatabase db) {
+        db.execSQL("CREATE UNIQUE INDEX Message_coalesce_key ON Message (coalesce_key);");
+        this.createCoalesceTrigger(db);
+    }
+
+    // an insert ignored for its idempotency key must not replace the queued message
+    private void createCoalesceTrigger(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER Message_coalesce BEFORE INSERT ON Message WHEN NEW.coalesce_key IS NOT NULL " +
+                   "AND NOT EXISTS (SELECT 1 FROM Message WHERE idempotency_key = NEW.idempotency_key) BEGIN " +
+                   "  DELETE FROM Message WHERE coalesce_key = NEW.coalesce_key; " +
+                   "END;");
+    }
+
+    /**
+     * Body files cannot be removed from SQL, so a trigger records the files of every deleted
+     * message, whatever the delete path, and {@link #purgeDeletedBodyFiles} removes them later.
+     */
+    private void createDeletedBodyFiles(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE DeletedBodyFile (name TEXT NOT NULL);");
+        this.createBodyFileTrigger(db);
+    }
+
+    private void createBodyFileTrigger(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER Message_body_file_delete AFTER DELETE ON Message " +
+                   "WHEN OLD.codec IN (" + BodyCodec.FILE + ", " + BodyCodec.BINARY_FILE + ") BEGIN " +
+                   "  INSERT INTO DeletedBodyFile (name) VALUES (OLD.body); " +
+                   "END;");
+    }
+
+    /**
+     * Single-row table holding the running total of queued payload bytes, kept
+     * up to date by triggers so that every insert and delete path is covered.
+     */
+    private void createQueueStats(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE QueueStats (id INTEGER PRIMARY KEY CHECK (id = 0), bytes INTEGER NOT NULL DEFAULT 0);");
+        db.execSQL("INSERT INTO QueueStats (id, bytes) SELECT 0, ifnull(sum(size), 0) FROM Message;");
+        this.createQueueStatsTriggers(db);
+    }
+
+    private void createQueueStatsTriggers(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER Message_stats_insert AFTER INSERT ON Message BEGIN " +
+                   "  UPDATE QueueStats SET bytes = bytes + NEW.size WHERE id = 0; " +
+                   "END;");
+        db.execSQL("CREATE TRIGGER Message_stats_delete AFTER DELETE ON Message BEGIN " +
+                   "  UPDATE QueueStats SET bytes = bytes - OLD.size WHERE id = 0; " +
+                   "END;");
+    }
+
+    /**
+     * Counts the queued messages, in total next to the queued bytes and per endpoint in its row,
+     * so that the queue depth is a single row read. The tables are shared with older upgrades,
+     * so the columns are added to them here.
+     */
+    private void createQueueDepth(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE QueueStats ADD COLUMN messages INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE Endpoint ADD COLUMN messages INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("UPDATE QueueStats SET messages = (SELECT count(*) FROM Message) WHERE id = 0");
+        db.execSQL("UPDATE Endpoint SET messages = (SELECT count(*) FROM Message WHERE endpoint_id = Endpoint.id)");
+        db.execSQL("CREATE TRIGGER Message_depth_insert AFTER INSERT ON Message BEGIN " +
+                   "  UPDATE QueueStats SET messages = messages + 1 WHERE id = 0; " +
+                   "  UPDATE Endpoint SET messages = messages + 1 WHERE id = NEW.endpoint_id; " +
+                   "END;");
+        db.execSQL("CREATE TRIGGER Message_depth_delete AFTER DELETE ON Message BEGIN " +
+                   "  UPDATE QueueStats SET messages = messages - 1 WHERE id = 0; " +
+                   "  UPDATE Endpoint SET messages = messages - 1 WHERE id = OLD.endpoint_id; " +
+                   "END;");
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        Log.v(TAG, "onConfigure");
+        db.enableWriteAheadLogging();
+        db.setForeignKeyConstraintsEnabled(true);
+        // only takes effect on a new database, existing ones are converted in onOpen
+        db.execSQL("pragma auto_vacuum = incremental");
     }
 
     @Override
-    protected void finalize() throws Throwable {
-        this.close();
-        super.finalize();
+    public void onOpen(SQLiteDatabase db) {
+        Log.v(TAG, "onOpen");
+        if (this.queryLong(db, "pragma auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            Log.i(TAG, "onOpen, converting database to incremental auto vacuum");
+            db.execSQL("pragma auto_vacuum = incremental");
+            this.vacuum(db);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (Repository.class) {
+            if (this == instance) {
+                referenceCount--;
+                Log.v(TAG, "close, references: " + referenceCount);
+                if (referenceCount > 0) {
+                    return;
+                }
+
+                instance = null;
+                referenceCount = 0;
+            }
+
+            if (this.statements != null) {
+                this.statements.close();
+                this.statements = null;
+            }
+            super.close();
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        Log.v(TAG, "onUpgrade");
-        db.execSQL("DROP TABLE Message");
+        Log.v(TAG, String.format("onUpgrade, oldVersion: %d, newVersion: %d", oldVersion, newVersion));
+        if (oldVersion < 3) {
+            db.execSQL("DROP TABLE IF EXISTS Header");
+            db.execSQL("DROP TABLE IF EXISTS Message");
+
+            onCreate(db);
+            return;
+        }
+
+        if (oldVersion < 5) {
+            this.upgradeToVersion5(db);
+        }
+
+        if (oldVersion < 6) {
+            this.upgradeToVersion6(db);
+        }
+
+        if (oldVersion < 7) {
+            this.upgradeToVersion7(db);
+        }
+
+        if (oldVersion < 8) {
+            this.upgradeToVersion8(db);
+        }
+
+        if (oldVersion < 9) {
+            this.upgradeToVersion9(db);
+        }
+
+        if (oldVersion < 10) {
+            this.upgradeToVersion10(db);
+        }
+
+        if (oldVersion < 11) {
+            this.upgradeToVersion11(db);
+        }
+
+        if (oldVersion < 12) {
+            this.upgradeToVersion12(db);
+        }
+
+        if (oldVersion < 13) {
+            this.upgradeToVersion13(db);
+        }
+
+        if (oldVersion < 14) {
+            this.upgradeToVersion14(db);
+        }
+
+        if (oldVersion < 15) {
+            this.upgradeToVersion15(db);
+        }
+
+        if (oldVersion < 16) {
+            this.upgradeToVersion16(db);
+        }
+
+        if (oldVersion < 17) {
+            this.upgradeToVersion17(db);
+        }
+
+        if (oldVersion < 18) {
+            this.upgradeToVersion18(db);
+        }
+
+        if (oldVersion < 19) {
+            this.upgradeToVersion19(db);
+        }
+    }
+
+    private void upgradeToVersion5(SQLiteDatabase db) {
+        Log.v(TAG, "upgradeToVersion5");
+        db.execSQL("ALTER TABLE Message ADD COLUMN headers BLOB DEFAULT NULL");
+
+        Cursor cursor = null;
+        SQLiteStatement update = db.compileStatement("UPDATE Message SET headers = ? WHERE id = ?");
+        try {
+            cursor = db.rawQuery("SELECT messageid, key, value FROM Header " +
+                                 "WHERE messageid IN (SELECT id FROM Message) ORDER BY messageid, id", null);
+
+            long messageId = -1;
+            List<Header> headers = new ArrayList<Header>();
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(0) != messageId) {
+                    this.updateEncodedHeaders(update, messageId, headers);
+                    messageId = cursor.getLong(0);
+                    headers.clear();
+                }
+                headers.add(new Header(cursor.getString(1), cursor.getString(2)));
+            }
+            this.updateEncodedHeaders(update, messageId, headers);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+            update.close();
+        }
+
         db.execSQL("DROP TABLE Header");
+    }
+
+    private void upgradeToVersion6(SQLiteDatabase db) {
+        Log.v(TAG, "upgradeToVersion6");
+        db.execSQL("ALTER TABLE Message ADD COLUMN codec INTEGER DEFAULT 0");
+    }
+
+    private void upgradeToVersion7(SQLiteDatabase db) {
+        Log.v(TAG, "upgradeToVersion7");
+        db.execSQL("ALTER TABLE Message ADD COLUMN size INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("UPDATE Message SET size = ifnull(length(CAST(body AS BLOB)), 0) + ifnull(length(headers), 0) + " +
+                   "ifnull(length(CAST(url AS BLOB)), 0)");
+        this.createQueueStats(db);
+    }
+
+    private void upgradeToVersion8(SQLiteDatabase db) {
+        Log.v(TAG, "upgradeToVersion8");
+        this.createDeletedBodyFiles(db);
+    }
+
+    private void upgradeToVersion9(SQLiteDatabase db) {
+        Log.v(TAG, "upgradeToVersion9");
+        db.execSQL("DROP TRIGGER IF EXISTS Message_body_file_delete");
+        this.createBodyFileTrigger(db);
+    }
 
-        onCreate(db);
+    private void upgradeToVersion10(SQLiteDatabase db) {
+        Log.v(TAG, "upgradeToVersion10");
+        db.execSQL("ALTER TABLE Message ADD COLUMN priority INTEGER NOT NULL DEFAULT 0");
+        this.createPriorityIndex(db);
+    }
+
+    /**
+     * Moves the urls to the Endpoint table. SQLite cannot drop a column, so the Message
+     * table is rebuilt, keeping ids, and its triggers and indexes are created again.
+     */
+    private void upgradeToVersion11(SQLiteDatabase db) {
+        Log.v(TAG, "upgradeToVersion11");
+        this.createEndpoints(db);
+        db.execSQL("DELETE FROM Message WHERE url IS NULL");
+        db.execSQL("INSERT INTO Endpoint (url) SELECT url FROM Message GROUP BY url ORDER BY min(id)");
+
+        // the version 11 layout, later upgrades add their columns to it
+        db.execSQL("CREATE TABLE Message_new (" +
+                   "  id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                   "  endpoint_id INTEGER NOT NULL REFERENCES Endpoint (id), " +
+                   "  body TEXT, " +
+                   "  username TEXT DEFAULT NULL, " +
+                   "  password TEXT DEFAULT NULL, " +
+                   "  tries_left DEFAULT 100, " +
+                   "  headers BLOB DEFAULT NULL, " +
+                   "  codec INTEGER DEFAULT 0, " +
+                   "  size INTEGER NOT NULL DEFAULT 0, " +
+                   "  priority INTEGER NOT NULL DEFAULT 0);");
+        db.execSQL("INSERT INTO Message_new (id, endpoint_id, body, username, password, tries_left, headers, codec, size, priority) " +
+                   "SELECT m.id, e.id, m.body, m.username, m.password, m.tries_left, m.headers, m.codec, m.size, m.priority " +
+                   "FROM Message m JOIN Endpoint e ON e.url = m.url");
+        // the rows live on in Message_new, their stats and body files must not be released
+        db.execSQL("DROP TRIGGER Message_stats_delete");
+        db.execSQL("DROP TRIGGER Message_body_file_delete");
+        db.execSQL("DROP TABLE Message");
+        db.execSQL("ALTER TABLE Message_new RENAME TO Message");
+
+        this.createPriorityIndex(db);
+        this.createEndpointIndex(db);
+        this.createQueueStatsTriggers(db);
+        this.createBodyFileTrigger(db);
+    }
+
+    private void upgradeToVersion12(SQLiteDatabase db) {
+        Log.v(TAG, "upgradeToVersion12");
+        db.execSQL("ALTER TABLE Message ADD COLUMN expires_at INTEGER DEFAULT NULL");
+        this.createExpiryIndex(db);
+    }
+
+    private void upgradeToVersion13(SQLiteDatabase db) {
+        Log.v(TAG, "upgradeToVersion13");
+        db.execSQL("ALTER TABLE Message ADD COLUMN idempotency_key TEXT DEFAULT NULL");
+        this.createIdempotencyKeyIndex(db);
+    }
+
+    private void upgradeToVersion14(SQLiteDatabase db) {
+        Log.v(TAG, "upgradeToVersion14");
+        db.execSQL("ALTER TABLE Message ADD COLUMN coalesce_key TEXT DEFAULT NULL");
+        this.createCoalescing(db);
+    }
+
+    /**
+     * Moves the credentials to the Credential table. The old columns stay, emptied, as SQLite
+     * cannot drop them; only the databases created from this version on are without them.
+     */
+    private void upgradeToVersion15(SQLiteDatabase db) {
+        Log.v(TAG, "upgradeToVersion15");
+        this.createCredentials(db);
+        db.execSQL("ALTER TABLE Message ADD COLUMN credential_id INTEGER DEFAULT NULL REFERENCES Credential (id)");
+        db.execSQL("INSERT INTO Credential (username, password) " +
+                   "SELECT DISTINCT username, password FROM Message WHERE username IS NOT NULL OR password IS NOT NULL");
+        db.execSQL("UPDATE Message SET credential_id = (SELECT c.id FROM Credential c " +
+                   "WHERE c.username IS Message.username AND c.password IS Message.password), " +
+                   "username = NULL, password = NULL " +
+                   "WHERE username IS NOT NULL OR password IS NOT NULL");
+    }
+
+    /**
+     * Moves the common headers to the {@link HeaderDictionary}, rewriting the headers of every queued message.
+     */
+    private void upgradeToVersion16(SQLiteDatabase db) {
+        Log.v(TAG, "upgradeToVersion16");
+        this.createHeaderPairs(db);
+
+        HeaderDictionary dictionary = new HeaderDictionary(db);
+        Cursor cursor = null;
+        SQLiteStatement update = db.compileStatement("UPDATE Message SET headers = ? WHERE id = ?");
+        try {
+            cursor = db.rawQuery("SELECT id, headers FROM Message WHERE headers IS NOT NULL", null);
+            while (cursor.moveToNext()) {
+                update.bindBlob(1, HeaderCodec.encode(HeaderCodec.decode(cursor.getBlob(1)), dictionary));
+                update.bindLong(2, cursor.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+            update.close();
+            dictionary.close();
+        }
+    }
+
+    private void upgradeToVersion17(SQLiteDatabase db) {
+        Log.v(TAG, "upgradeToVersion17");
+        this.createQueueDepth(db);
+    }
+
+    private void upgradeToVersion18(SQLiteDatabase db) {
+        Log.v(TAG, "upgradeToVersion18");
+        db.execSQL("ALTER TABLE Message ADD COLUMN claimed_by TEXT DEFAULT NULL");
+        db.execSQL("ALTER TABLE Message ADD COLUMN lease_until INTEGER NOT NULL DEFAULT 0");
+        this.createLeaseIndex(db);
+    }
+
+    private void upgradeToVersion19(SQLiteDatabase db) {
+        Log.v(TAG, "upgradeToVersion19");
+        db.execSQL("DROP TRIGGER IF EXISTS Message_coalesce");
+        this.createCoalesceTrigger(db);
+    }
+
+    private void updateEncodedHeaders(SQLiteStatement update, long messageId, List<Header> headers) {
+        if (headers.isEmpty()) {
+            return;
+        }
+
+        update.bindBlob(1, HeaderCodec.encode(headers));
+        update.bindLong(2, messageId);
+        update.executeUpdateDelete();
+    }
+
+    /**
+     * Enables or disables deflating message bodies at rest. Bodies already stored keep
+     * their encoding, so the setting can be changed at any time.
+     */
+    public void setBodyCompression(boolean bodyCompression) {
+        Log.v(TAG, "setBodyCompression: " + bodyCompression);
+        this.bodyCompression = bodyCompression;
     }
 
     public void insert(Message message) {
@@ -68,13 +606,18 @@ public class Repository extends SQLiteOpenHelper {
             return;
         }
 
-        lock.lock();
         SQLiteDatabase db = this.getWritableDatabase();
+        if (this.isDuplicate(db, message)) {
+            return;
+        }
+
+        StoredMessage stored = this.encode(db, message);
+        db.beginTransactionNonExclusive();
         try {
-            this.insertMessage(db, message);
+            this.insertMessage(db, message, stored);
+            db.setTransactionSuccessful();
         } finally {
-            db.close();
-            lock.unlock();
+            db.endTransaction();
         }
     }
 
@@ -86,82 +629,337 @@ public class Repository extends SQLiteOpenHelper {
             return;
         }
 
-        lock.lock();
         SQLiteDatabase db = this.getWritableDatabase();
+        if (this.isDuplicate(db, message)) {
+            return;
+        }
+
+        // the body is encoded before taking the write lock, only the size check and eviction need it
+        StoredMessage stored = this.encode(db, message);
+        db.beginTransactionNonExclusive();
         try {
-            long dbSize = this.getDbSize(db);
+            long dbSize = this.getQueuedBytes(db) + stored.size;
             Log.v(TAG, String.format("insert with limit. dbSize: %d, dbSizeLimit: %d", dbSize, dbSizeLimit));
             if (this.dbSizeApproachesLimit(dbSize, dbSizeLimit)) {
                 Log.v(TAG, "insert with limit, dbSizeApproachesLimit");
                 this.clearOldRecords(db, message);
             }
 
-            this.insertMessage(db, message);
+            this.insertMessage(db, message, stored);
+            db.setTransactionSuccessful();
         } finally {
-            db.close();
-            lock.unlock();
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Inserts the messages in a single transaction, so that a burst of enqueues costs one
+     * commit. {@code dbSizeLimit} is applied as by {@link #insert(Message, long)}; pass -1 for
+     * no limit. Either all the messages are queued or, if an exception is thrown, none of them.
+     */
+    public void insertAll(List<Message> messages, long dbSizeLimit) {
+        Log.v(TAG, String.format("insertAll, messages: %d, dbSizeLimit: %d", messages.size(), dbSizeLimit));
+
+        SQLiteDatabase db = this.getWritableDatabase();
+        List<Message> accepted = new ArrayList<Message>(messages.size());
+        List<StoredMessage> stored = new ArrayList<StoredMessage>(messages.size());
+        try {
+            for (Message message : messages) {
+                if (message != null && !this.isDuplicate(db, message)) {
+                    accepted.add(message);
+                    stored.add(this.encode(db, message));
+                }
+            }
+
+            db.beginTransactionNonExclusive();
+            try {
+                for (int i = 0; i < accepted.size(); i++) {
+                    if (dbSizeLimit != -1 && this.dbSizeApproachesLimit(this.getQueuedBytes(db) + stored.get(i).size, dbSizeLimit)) {
+                        this.clearOldRecords(db, accepted.get(i));
+                    }
+                    this.insertMessage(db, accepted.get(i), stored.get(i));
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            // nothing was committed, so none of the body files written for the batch is referenced
+            for (StoredMessage message : stored) {
+                if (BodyCodec.isFile(message.codec)) {
+                    this.bodyFiles.delete(message.text);
+                }
+            }
+            throw e;
         }
     }
 
     public Message getNext() throws URISyntaxException {
         Log.v(TAG, "getNext");
-        return getNextMessageAfter(null);
+
+        List<Message> messages = this.getNextBatchAfter((QueuePosition) null, 1, Long.MAX_VALUE);
+        return messages.isEmpty() ? null : messages.get(0);
     }
 
+    /**
+     * @deprecated use {@link #getNextBatchAfter(QueuePosition, int, long)}, see
+     * {@link #getNextBatchAfter(Long, int)}.
+     */
+    @Deprecated
     public Message getNextMessageAfter(Long messageId) throws URISyntaxException {
         Log.v(TAG, "getNextMessageAfter");
-        Cursor messageCursor = null;
-        Cursor headersCursor = null;
-        SQLiteDatabase db = this.getReadableDatabase();
+
+        List<Message> messages = this.getNextBatchAfter(messageId, 1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    /**
+     * Returns up to {@code count} queued messages in queue order (descending priority,
+     * then id), headers included.
+     */
+    public List<Message> getNextBatch(int count) throws URISyntaxException {
+        Log.v(TAG, "getNextBatch");
+        return this.getNextBatchAfter((QueuePosition) null, count, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns up to {@code count} messages after the one with id {@code messageId} (or from the
+     * head of the queue when it is null), in queue order. The position is rebuilt from the
+     * priority of that message, so a message that is no longer queued can only be followed by id.
+     *
+     * @deprecated a message id alone cannot tell where a reader stands in a queue ordered by
+     * priority; use {@link #getNextBatchAfter(QueuePosition, int, long)} with the position
+     * from {@link QueuePosition#after}.
+     */
+    @Deprecated
+    public List<Message> getNextBatchAfter(Long messageId, int count) throws URISyntaxException {
+        Log.v(TAG, String.format("getNextBatchAfter, messageId: %s, count: %d", messageId, count));
+
+        if (messageId == null) {
+            return this.getNextBatchAfter((QueuePosition) null, count, Long.MAX_VALUE);
+        }
+
+        Cursor cursor = this.getReadableDatabase().rawQuery("select priority from Message where id = ?",
+                new String[]{String.valueOf(messageId)});
         try {
-            String selection = null;
-            if (messageId != null) {
-                selection = "id > " + messageId;
+            if (!cursor.moveToFirst()) {
+                return this.getNextBatch("where id > ? ", new String[]{String.valueOf(messageId), String.valueOf(count)},
+                        count, Long.MAX_VALUE);
             }
+            QueuePosition position = new QueuePosition(cursor.getInt(0), messageId, messageId);
+            return this.getNextBatchAfter(position, count, Long.MAX_VALUE);
+        } finally {
+            cursor.close();
+        }
+    }
 
-            messageCursor = db.query("Message", new String[]{"id", "url",
-                    "body", "username", "password", "tries_left" }, selection, null, null, null, "id", "1");
-            if (!messageCursor.moveToFirst())
-                return null;
+    /**
+     * Returns up to {@code count} messages after {@code position} (or from the head of the queue
+     * when it is null), stopping before the payload bytes of the batch would exceed {@code maxBytes}.
+     * The first message is always returned, whatever its size. Use {@link QueuePosition#after} to
+     * move the position past the returned batch.
+     */
+    public List<Message> getNextBatchAfter(QueuePosition position, int count, long maxBytes) throws URISyntaxException {
+        Log.v(TAG, String.format("getNextBatchAfter, position: %s, count: %d, maxBytes: %d", position, count, maxBytes));
+
+        if (position == null) {
+            return this.getNextBatch("", new String[]{String.valueOf(count)}, count, maxBytes);
+        }
+        return this.getNextBatch(position.selection(), position.args(count), count, maxBytes);
+    }
 
-            long id = messageCursor.getLong(0);
-            String url = messageCursor.getString(1);
-            String body = messageCursor.getString(2);
-            String username = messageCursor.getString(3);
-            String password = messageCursor.getString(4);
-            Integer triesLeft = messageCursor.getInt(5);
+    /**
+     * Claims up to {@code count} messages for {@code worker}, in queue order, and leases them
+     * to it for {@code leaseMillis}. The batch is cut by {@code maxBytes} like
+     * {@link #getNextBatchAfter(QueuePosition, int, long)}.
+     * <p>
+     * Messages under a lease that has not expired at {@code now} are skipped, so concurrent
+     * workers always claim distinct messages. Readers that do not claim skip them as well. A
+     * message whose lease expired, because its worker died or gave up on it, can be claimed
+     * again. The select and the lease are one transaction. Delete the messages once they are
+     * sent, or {@link #release} them to retry later.
+     */
+    public List<Message> claim(String worker, int count, long maxBytes, long now, long leaseMillis) throws URISyntaxException {
+        Log.v(TAG, String.format("claim, worker: %s, count: %d, maxBytes: %d", worker, count, maxBytes));
 
-            headersCursor = db.query("Header", new String[]{"id", "key",
-                            "value"}, "messageid = " + id, null, null, null,
-                    null);
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            List<Message> messages = this.getNextBatch("", new String[]{String.valueOf(count)}, count, maxBytes, now);
+            if (!messages.isEmpty()) {
+                long[] ids = new long[messages.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = messages.get(i).getId();
+                }
+                this.logExpiredLeases(db, ids);
+                this.updateLeases(db, ids, "claimed_by = ?, lease_until = ?", "",
+                        new Object[]{worker, now + leaseMillis});
+            }
+            db.setTransactionSuccessful();
+            Log.v(TAG, "claim, claimed: " + messages.size());
+            return messages;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Ends the leases {@code worker} holds on the messages, so that any worker can claim them again.
+     * Messages that were reclaimed by another worker meanwhile are left alone.
+     */
+    public void release(String worker, long[] ids) {
+        Log.v(TAG, "release, worker: " + worker);
+        if (ids == null || ids.length == 0)
+            return;
+
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            this.updateLeases(db, ids, "claimed_by = NULL, lease_until = 0", "claimed_by = ? AND ",
+                    new Object[]{worker});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Runs {@code UPDATE Message SET assignments WHERE condition id IN (ids)}, in chunks that keep
+     * under the bound arguments limit; {@code args} binds the assignments and the condition.
+     */
+    private void updateLeases(SQLiteDatabase db, long[] ids, String assignments, String condition, Object[] args) {
+        for (int offset = 0; offset < ids.length; offset += RepositoryStatements.DELETE_BATCH_SIZE) {
+            int chunk = Math.min(RepositoryStatements.DELETE_BATCH_SIZE, ids.length - offset);
+            Object[] bindArgs = Arrays.copyOf(args, args.length + chunk);
+            for (int i = 0; i < chunk; i++) {
+                bindArgs[args.length + i] = ids[offset + i];
+            }
+            db.execSQL("UPDATE Message SET " + assignments + " WHERE " + condition +
+                    "id IN (" + RepositoryStatements.placeholders(chunk) + ")", bindArgs);
+        }
+    }
+
+    /**
+     * Leaves a trace of the messages taken over from a worker whose lease expired: their
+     * send may or may not have gone through.
+     */
+    private void logExpiredLeases(SQLiteDatabase db, long[] ids) {
+        for (int offset = 0; offset < ids.length; offset += RepositoryStatements.DELETE_BATCH_SIZE) {
+            int chunk = Math.min(RepositoryStatements.DELETE_BATCH_SIZE, ids.length - offset);
+            String[] args = new String[chunk];
+            for (int i = 0; i < chunk; i++) {
+                args[i] = String.valueOf(ids[offset + i]);
+            }
+
+            Cursor cursor = db.rawQuery("SELECT id, claimed_by FROM Message WHERE claimed_by IS NOT NULL AND id IN (" +
+                    RepositoryStatements.placeholders(chunk) + ")", args);
+            try {
+                while (cursor.moveToNext()) {
+                    Log.w(TAG, String.format("claim, message %d was in flight with %s, its lease expired",
+                            cursor.getLong(0), cursor.getString(1)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
 
-            ArrayList<Header> headers = new ArrayList<Header>();
-            while (headersCursor.moveToNext()) {
-                headers.add(new Header(headersCursor.getLong(0), headersCursor
-                        .getString(1), headersCursor.getString(2)));
+    private List<Message> getNextBatch(String selection, String[] args, int count, long maxBytes) throws URISyntaxException {
+        return this.getNextBatch(selection, args, count, maxBytes, System.currentTimeMillis());
+    }
+
+    /**
+     * Runs the dequeue query; {@code args} binds the {@code selection} followed by the limit.
+     * Messages leased past {@code now} are left out.
+     */
+    private List<Message> getNextBatch(String selection, String[] args, int count, long maxBytes, long now) throws URISyntaxException {
+        List<Message> messages = new ArrayList<Message>();
+        if (count <= 0) {
+            return messages;
+        }
+
+        // the lease check goes between the selection and the limit
+        selection = (selection.isEmpty() ? "where " : selection + "and ") + "lease_until <= ? ";
+        String[] unleased = Arrays.copyOf(args, args.length + 1);
+        unleased[args.length - 1] = String.valueOf(now);
+        unleased[args.length] = args[args.length - 1];
+        args = unleased;
+
+        SQLiteDatabase db = this.getReadableDatabase();
+        if (maxBytes < Long.MAX_VALUE) {
+            int fitting = this.countMessagesWithin(db, selection, args, maxBytes);
+            if (fitting == 0) {
+                return messages;
             }
+            args[args.length - 1] = String.valueOf(fitting);
+        }
 
-            Message message = new Message(messageId, new URI(url), body, username, password, headers);
-            message.setNumberOfTries(triesLeft);
-            return message;
+        RepositoryStatements statements = this.statements(db);
+        // the messages resolve their headers later, possibly once the database is closed
+        statements.headers.load();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(
+                    "select id, endpoint_id, body, credential_id, tries_left, headers, codec, priority, expires_at, " +
+                    "idempotency_key, coalesce_key, size from Message " +
+                    selection + QUEUE_ORDER + " limit ?", args);
+
+            while (cursor.moveToNext()) {
+                Message message = this.decode(cursor, statements);
+                message.setNumberOfTries(cursor.getInt(4));
+                message.setPriority(cursor.getInt(7));
+                message.setExpiresAt(cursor.isNull(8) ? null : cursor.getLong(8));
+                message.setIdempotencyKey(cursor.getString(9));
+                message.setCoalesceKey(cursor.getString(10));
+                message.setStoredSize(cursor.getLong(11));
+                messages.add(message);
+            }
+
+            Log.v(TAG, "getNextBatch, messages: " + messages.size());
+            return messages;
+        } finally {
+            if (cursor != null)
+                cursor.close();
         }
-        finally {
-            if (messageCursor != null)
-                messageCursor.close();
-            if (headersCursor != null)
-                headersCursor.close();
-            db.close();
+    }
+
+    /**
+     * Counts how many of the selected messages fit in {@code maxBytes}, reading only their
+     * sizes so that large bodies are not pulled into the cursor window just to be dropped.
+     */
+    private int countMessagesWithin(SQLiteDatabase db, String selection, String[] args, long maxBytes) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("select size from Message " + selection + QUEUE_ORDER + " limit ?", args);
+
+            int fitting = 0;
+            long bytes = 0;
+            while (cursor.moveToNext()) {
+                bytes += cursor.getLong(0);
+                if (fitting > 0 && bytes > maxBytes) {
+                    break;
+                }
+                fitting++;
+            }
+            return fitting;
+        } finally {
+            if (cursor != null)
+                cursor.close();
         }
     }
 
+    /**
+     * Evicts the oldest messages until the queued payload bytes fit in {@code limit}
+     * minus the cleaning margin. The id cutoff is found in a single ordered pass.
+     * Shrinks run one at a time, but enqueues only wait for the eviction itself.
+     */
     public void shrinkDb(long limit) {
         Log.v(TAG, "shrinkDb");
-        lock.lock();
-
-        SQLiteDatabase db = this.getWritableDatabase();
+        this.maintenance.lock();
         try {
+            SQLiteDatabase db = this.getWritableDatabase();
             limit -= SIZE_DIFFERENCE_TO_START_CLEANING;
-            long dbSize = this.getDbSize(db);
+            long dbSize = this.getQueuedBytes(db);
 
             Log.v(TAG, "shrinkDb, dbSize: " + dbSize);
             Log.v(TAG, "shrinkDb, limit: " + limit);
@@ -170,20 +968,41 @@ public class Repository extends SQLiteOpenHelper {
                 return;
             }
 
-            do {
-                Log.v(TAG, String.format("shrinkDb, dbSize > limit, SHRINK needed, dbSize: %d, limit: %d", dbSize, limit));
-                this.shrink(db, limit, dbSize);
-                dbSize = this.getDbSize(db);
-            }
-            while (dbSize > limit);
+            Log.v(TAG, String.format("shrinkDb, dbSize > limit, SHRINK needed, dbSize: %d, limit: %d", dbSize, limit));
+            this.shrink(db, dbSize - limit);
 
-            Log.v(TAG, String.format("shrinkDb, dbSize: %d, limit: %d", dbSize, limit));
-            this.vacuum(db);
+            Log.v(TAG, String.format("shrinkDb, dbSize: %d, limit: %d", this.getQueuedBytes(db), limit));
+            this.purgeDeletedBodyFiles(db);
+            this.incrementalVacuum(db, INCREMENTAL_VACUUM_PAGES);
         } finally {
-            db.close();
-            lock.unlock();
+            this.maintenance.unlock();
         }
+    }
 
+    /**
+     * Deletes, in one statement, every message that expired at or before {@code now},
+     * and returns how many were removed.
+     */
+    public int deleteExpired(long now) {
+        Log.v(TAG, "deleteExpired, now: " + now);
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            int deleted = this.statements(db).deleteExpired(now);
+            db.setTransactionSuccessful();
+            Log.v(TAG, "deleteExpired, deleted: " + deleted);
+            return deleted;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Total payload bytes of the queued messages, as maintained by the QueueStats triggers.
+     */
+    public long getQueuedBytes() {
+        Log.v(TAG, "getQueuedBytes");
+        return this.getQueuedBytes(this.getReadableDatabase());
     }
 
     public void delete(Message message) {
@@ -193,14 +1012,41 @@ public class Repository extends SQLiteOpenHelper {
         if (message.getId() == null)
             return;
 
+        this.deleteExistingMessage(this.getWritableDatabase(), message.getId());
+    }
+
+    /**
+     * Deletes all the given messages in one transaction, with one statement per
+     * {@value RepositoryStatements#DELETE_BATCH_SIZE} ids. Ids that are no longer queued are ignored.
+     */
+    public void deleteAll(long[] ids) {
+        Log.v(TAG, "deleteAll");
+        if (ids == null || ids.length == 0)
+            return;
+
         SQLiteDatabase db = this.getWritableDatabase();
+        RepositoryStatements statements = this.statements(db);
+        db.beginTransactionNonExclusive();
         try {
-            if (!this.doesMessageExist(db, message))
-                return;
+            int deleted = 0;
+            int offset = 0;
+            for (; offset + RepositoryStatements.DELETE_BATCH_SIZE <= ids.length; offset += RepositoryStatements.DELETE_BATCH_SIZE) {
+                deleted += statements.deleteBatch(ids, offset);
+            }
 
-            this.deleteExistingMessage(db, message.getId());
+            int count = ids.length - offset;
+            if (count > 0) {
+                String[] args = new String[count];
+                for (int i = 0; i < count; i++) {
+                    args[i] = String.valueOf(ids[offset + i]);
+                }
+                deleted += db.delete("Message", "id in (" + RepositoryStatements.placeholders(count) + ")", args);
+            }
+            db.setTransactionSuccessful();
+
+            Log.v(TAG, String.format("deleteAll, requested: %d, deleted: %d", ids.length, deleted));
         } finally {
-            db.close();
+            db.endTransaction();
         }
     }
 
@@ -208,53 +1054,249 @@ public class Repository extends SQLiteOpenHelper {
         Log.v(TAG, "deleteMessagesFrom");
 
         SQLiteDatabase db = this.getWritableDatabase();
-        db.beginTransaction();
+        db.beginTransactionNonExclusive();
         try {
-            String[] args = new String[]{String.valueOf(messageId)};
-            db.delete("Header", "messageid <= ?", args);
-            db.delete("Message", "id <= ?", args);
+            this.statements(db).deleteUpTo(messageId);
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
-            db.close();
         }
     }
 
+    /**
+     * Number of queued messages, as maintained by the queue depth triggers.
+     */
     public long getAvailableMessagesCount() {
         Log.v(TAG, "getAvailableMessagesCount");
 
-        SQLiteDatabase db = this.getReadableDatabase();
-        long numberOfMessages = this.getNumberOfMessages(db);
-        db.close();
-        return numberOfMessages;
+        return this.statements(this.getReadableDatabase()).queuedMessages();
+    }
+
+    /**
+     * Number of queued messages for the url.
+     */
+    public long getAvailableMessagesCount(String url) {
+        Log.v(TAG, "getAvailableMessagesCount, url: " + url);
+
+        RepositoryStatements statements = this.statements(this.getReadableDatabase());
+        long endpointId = statements.findEndpointId(url);
+        return endpointId == 0 ? 0 : statements.countForEndpoint(endpointId);
+    }
+
+    private Message decode(Cursor cursor, RepositoryStatements statements) throws URISyntaxException {
+        int codec = cursor.getInt(6);
+        long id = cursor.getLong(0);
+        URI uri = new URI(statements.endpointUrl(cursor.getLong(1)));
+        RepositoryStatements.Credential credential = cursor.isNull(3) ? RepositoryStatements.Credential.NONE
+                : statements.credential(cursor.getLong(3));
+        Message message;
+        switch (codec) {
+            case BodyCodec.BINARY:
+                message = Message.binary(id, uri, cursor.getBlob(2), credential.username, credential.password, null);
+                break;
+            case BodyCodec.BINARY_FILE:
+                message = Message.binary(id, uri, null, credential.username, credential.password, null);
+                message.setBodyFile(this.bodyFiles.get(cursor.getString(2)));
+                break;
+            case BodyCodec.FILE:
+                message = new Message(id, uri, (String) null, credential.username, credential.password, null);
+                message.setBodyFile(this.bodyFiles.get(cursor.getString(2)));
+                break;
+            case BodyCodec.DEFLATE:
+                message = new Message(id, uri, BodyCodec.inflate(cursor.getBlob(2)), credential.username,
+                        credential.password, null);
+                break;
+            default:
+                message = new Message(id, uri, cursor.getString(2), credential.username, credential.password, null);
+        }
+        message.setEncodedHeaders(cursor.getBlob(5), statements.headers);
+        message.setCredentialId(cursor.isNull(3) ? 0 : cursor.getLong(3));
+        return message;
     }
 
-    private void insertMessage(SQLiteDatabase db, Message message) {
+    /**
+     * Encodes the message for storage. Must be called outside of any transaction: a new endpoint
+     * credential or header pair is committed on its own, so that its cached id stays valid whatever
+     * happens to the insert.
+     */
+    private StoredMessage encode(SQLiteDatabase db, Message message) {
+        RepositoryStatements statements = this.statements(db);
+        long endpointId = statements.endpointId(message.getUrl());
+        long credentialId = statements.credentialId(message.getUsername(), message.getPassword());
+        StoredMessage stored = this.encodeBody(message, HeaderCodec.encode(message.getHeaders(), statements.headers));
+        stored.endpointId = endpointId;
+        stored.credentialId = credentialId;
+        return stored;
+    }
+
+    private StoredMessage encodeBody(Message message, byte[] headers) {
+        if (message.getBodyFile() != null) {
+            StoredMessage stored = this.encodeBodyFile(message, headers);
+            if (stored != null) {
+                return stored;
+            }
+        }
+        if (message.isBinary()) {
+            return this.encodeBinary(message, headers);
+        }
+
+        String body = message.getBody();
+        long bodySize = BodyCodec.utf8Length(body);
+        if (bodySize > BODY_FILE_THRESHOLD) {
+            try {
+                String name = this.bodyFiles.write(body);
+                return new StoredMessage(message, BodyCodec.FILE, name, null, headers, bodySize);
+            } catch (IOException e) {
+                Log.w(TAG, "encode, cannot write body file, keeping the body in the database", e);
+            }
+        }
+
+        if (this.bodyCompression) {
+            byte[] deflated = BodyCodec.deflate(body);
+            if (deflated != null) {
+                return new StoredMessage(message, BodyCodec.DEFLATE, null, deflated, headers, deflated.length);
+            }
+        }
+        return new StoredMessage(message, BodyCodec.PLAIN, body, null, headers, bodySize);
+    }
+
+    /**
+     * A body that already is in a file, spilled by {@link it.sii.reyna.services.StoreService} or
+     * read from another store, is copied to a body file of its own without being read into memory.
+     * Returns null when the file cannot be copied, to fall back to reading it.
+     */
+    private StoredMessage encodeBodyFile(Message message, byte[] headers) {
+        File file = message.getBodyFile();
+        int codec = message.isBinary() ? BodyCodec.BINARY_FILE : BodyCodec.FILE;
+        try {
+            String name = this.bodyFiles.copy(file);
+            return new StoredMessage(message, codec, name, null, headers, file.length());
+        } catch (IOException e) {
+            Log.w(TAG, "encodeBodyFile, cannot copy " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Binary bodies are stored as they are: callers usually hand over data that is already
+     * compressed, so they are never deflated.
+     */
+    private StoredMessage encodeBinary(Message message, byte[] headers) {
+        byte[] body = message.getBinaryBody();
+        long bodySize = body == null ? 0 : body.length;
+        if (bodySize > BODY_FILE_THRESHOLD) {
+            try {
+                String name = this.bodyFiles.write(body);
+                return new StoredMessage(message, BodyCodec.BINARY_FILE, name, null, headers, bodySize);
+            } catch (IOException e) {
+                Log.w(TAG, "encodeBinary, cannot write body file, keeping the body in the database", e);
+            }
+        }
+        return new StoredMessage(message, BodyCodec.BINARY, null, body, headers, bodySize);
+    }
+
+    private void insertMessage(SQLiteDatabase db, Message message, StoredMessage stored) {
         Log.v(TAG, "insertMessage");
+        long messageId;
         try {
-            db.beginTransaction();
-            ContentValues values = new ContentValues();
-            values.put("url", message.getUrl());
-            values.put("body", message.getBody());
-            values.put("username", message.getUsername());
-            values.put("password", message.getPassword());
-            values.put("tries_left", message.getNumberOfTries());
-
-            long messageId = db.insert("Message", null, values);
-            this.addHeaders(db, messageId, message.getHeaders());
-            db.setTransactionSuccessful();
+            messageId = this.statements(db).insert(stored.endpointId, stored.text, stored.data, stored.codec,
+                    stored.credentialId, message.getNumberOfTries(), stored.headers, stored.size,
+                    message.getPriority(), message.getExpiresAt(), message.getIdempotencyKey(),
+                    message.getCoalesceKey());
+        } catch (RuntimeException e) {
+            if (BodyCodec.isFile(stored.codec)) {
+                this.bodyFiles.delete(stored.text);
+            }
+            throw e;
+        }
 
-            Log.v("reyna", "Repository: inserted message " + messageId);
-        } finally {
-            if (db != null && db.inTransaction()) {
-                db.endTransaction();
+        if (messageId == -1) {
+            Log.v(TAG, "insertMessage, duplicate idempotency key: " + message.getIdempotencyKey());
+            if (BodyCodec.isFile(stored.codec)) {
+                this.bodyFiles.delete(stored.text);
+            }
+            return;
+        }
+
+        if (message.getIdempotencyKey() != null) {
+            this.idempotencyKeys(db).add(message.getIdempotencyKey());
+        }
+        Log.v("reyna", "Repository: inserted message " + messageId);
+    }
+
+    /**
+     * Tells whether a message with the same idempotency key is already queued. The Bloom filter
+     * answers the common case, a new key, without touching the database; only its positives are
+     * checked with a query. Inserts ignore duplicates anyway, this only saves encoding the body
+     * and evicting space for a message that would be dropped.
+     */
+    private boolean isDuplicate(SQLiteDatabase db, Message message) {
+        String key = message.getIdempotencyKey();
+        if (key == null || !this.idempotencyKeys(db).mightContain(key)) {
+            return false;
+        }
+
+        boolean duplicate = this.statements(db).hasIdempotencyKey(key);
+        Log.v(TAG, String.format("isDuplicate, key: %s, duplicate: %b", key, duplicate));
+        return duplicate;
+    }
+
+    /**
+     * Returns the filter of the idempotency keys ever queued, loading the queued ones on first use.
+     * Keys of delivered messages stay in it and only cost a query when they come back.
+     */
+    private BloomFilter idempotencyKeys(SQLiteDatabase db) {
+        BloomFilter filter = this.idempotencyKeys;
+        if (filter != null) {
+            return filter;
+        }
+
+        synchronized (this) {
+            if (this.idempotencyKeys == null) {
+                filter = new BloomFilter(IDEMPOTENCY_FILTER_BITS, IDEMPOTENCY_FILTER_HASHES);
+                Cursor cursor = db.rawQuery("SELECT idempotency_key FROM Message WHERE idempotency_key IS NOT NULL", null);
+                try {
+                    while (cursor.moveToNext()) {
+                        filter.add(cursor.getString(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                this.idempotencyKeys = filter;
             }
+            return this.idempotencyKeys;
+        }
+    }
+
+    /**
+     * Returns the statements compiled against {@code db}, compiling them on first use.
+     * Compilation happens outside of any lock, as it may have to wait for a connection.
+     */
+    private RepositoryStatements statements(SQLiteDatabase db) {
+        RepositoryStatements current = this.statements;
+        if (current != null && current.db == db) {
+            return current;
+        }
+
+        RepositoryStatements compiled = new RepositoryStatements(db);
+        synchronized (this) {
+            current = this.statements;
+            if (current != null && current.db == db) {
+                compiled.close();
+                return current;
+            }
+
+            if (current != null) {
+                current.close();
+            }
+            this.statements = compiled;
+            return compiled;
         }
     }
 
     private void clearOldRecords(SQLiteDatabase db, Message message) {
         Log.v(TAG, "clearOldRecords");
-        Long oldestMessageId = findOldestMessageIdWithType(db, message.getUrl());
+        Long oldestMessageId = findOldestMessageIdWithEndpoint(db, message.getUrl());
 
         Log.v(TAG, "clearOldRecords, message.getUrl(): " + message.getUrl());
         Log.v(TAG, "clearOldRecords, oldestMessageId: " + oldestMessageId);
@@ -265,24 +1307,18 @@ public class Repository extends SQLiteOpenHelper {
         this.deleteExistingMessage(db, oldestMessageId);
     }
 
-    private Long findOldestMessageIdWithType(SQLiteDatabase db, String type) {
-        Log.v(TAG, "findOldestMessageIdWithType");
-        Cursor cursor = null;
-        try {
-            cursor = db.query("Message", new String[]{"min(id)"}, "url=?", new String[]{type}, null, null, null);
-            if (cursor.moveToNext()) {
-                long result = cursor.getLong(0);
-                Log.v(TAG, "findOldestMessageIdWithType, oldest messageid: " + result);
-                return result;
-            }
-
-            Log.v(TAG, "findOldestMessageIdWithType, NO Message found");
+    private Long findOldestMessageIdWithEndpoint(SQLiteDatabase db, String url) {
+        Log.v(TAG, "findOldestMessageIdWithEndpoint");
+        RepositoryStatements statements = this.statements(db);
+        long endpointId = statements.findEndpointId(url);
+        long result = endpointId == 0 ? 0 : statements.oldestForEndpoint(endpointId);
+        if (result == 0) {
+            Log.v(TAG, "findOldestMessageIdWithEndpoint, NO Message found");
             return null;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
         }
+
+        Log.v(TAG, "findOldestMessageIdWithEndpoint, oldest messageid: " + result);
+        return result;
     }
 
     private boolean dbSizeApproachesLimit(long dbSize, long limit) {
@@ -293,86 +1329,136 @@ public class Repository extends SQLiteOpenHelper {
     }
 
 
-    private long getNumberOfMessages(SQLiteDatabase db) {
-        Log.v(TAG, "getNumberOfMessages");
-
-        Cursor cursor = null;
+    private void deleteExistingMessage(SQLiteDatabase db, long messageId) {
+        Log.v(TAG, "deleteExistingMessage");
+        db.beginTransactionNonExclusive();
         try {
-            cursor = db.rawQuery("select count(*) from Message", null);
-            if (cursor.moveToFirst()) {
-                long numberOfMessages = cursor.getLong(0);
-                Log.v(TAG, "getNumberOfMessages, numberOfMessages: " + numberOfMessages);
-                return numberOfMessages;
-            }
-
-            return 0;
+            this.statements(db).deleteById(messageId);
+            db.setTransactionSuccessful();
         } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+            db.endTransaction();
         }
     }
 
-    private void deleteExistingMessage(SQLiteDatabase db, long messageId) {
-        Log.v(TAG, "deleteExistingMessage");
-        db.beginTransaction();
+    /**
+     * Tells whether a message with the same idempotency key is queued in this database.
+     */
+    boolean isQueued(Message message) {
+        return this.isDuplicate(this.getReadableDatabase(), message);
+    }
+
+    /**
+     * Deletes the queued messages with the coalesce key, which a newer partition has replaced.
+     */
+    int deleteCoalesced(String coalesceKey) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
         try {
-            String[] args = new String[]{String.valueOf(messageId)};
-            db.delete("Header", "messageid = ?", args);
-            db.delete("Message", "id = ?", args);
+            int deleted = db.delete("Message", "coalesce_key = ?", new String[]{coalesceKey});
             db.setTransactionSuccessful();
+            return deleted;
         } finally {
             db.endTransaction();
         }
     }
 
-    private boolean doesMessageExist(SQLiteDatabase db, Message message) {
-        Log.v(TAG, "doesMessageExist");
-
-        Cursor cursor = null;
+    /**
+     * Deletes the body files of the queued and deleted messages, before the whole database file is dropped.
+     */
+    void deleteBodyFiles() {
+        SQLiteDatabase db = this.getWritableDatabase();
+        this.purgeDeletedBodyFiles(db);
+        Cursor cursor = db.rawQuery("select body from Message where codec in (?, ?)",
+                new String[]{String.valueOf(BodyCodec.FILE), String.valueOf(BodyCodec.BINARY_FILE)});
         try {
-            cursor = db.query("Message", new String[]{"id"}, "id = ?",
-                    new String[]{message.getId().toString()}, null, null,
-                    null);
-            return cursor.moveToFirst();
+            while (cursor.moveToNext()) {
+                this.bodyFiles.delete(cursor.getString(0));
+            }
         } finally {
-            if (cursor != null)
-                cursor.close();
+            cursor.close();
         }
     }
 
-    private void addHeaders(SQLiteDatabase db, long messageid, List<Header> headers) {
-        Log.v(TAG, "addHeaders");
+    private void shrink(SQLiteDatabase db, long bytesToRemove) {
+        long thresholdId = this.getMessageIdToWhichShrink(db, bytesToRemove);
+        if (thresholdId > 0) {
+            this.deleteMessagesFrom(thresholdId);
+        }
+    }
 
-        for (Header header : headers) {
-            ContentValues headerValues = new ContentValues();
-            headerValues.put("messageid", messageid);
-            headerValues.put("key", header.getKey());
-            headerValues.put("value", header.getValue());
+    /**
+     * Returns up to {@value #INCREMENTAL_VACUUM_PAGES} free pages to the file system.
+     */
+    public void compact() {
+        this.compact(INCREMENTAL_VACUUM_PAGES);
+    }
 
-            db.insert("Header", null, headerValues);
+    /**
+     * Returns at most {@code maxPages} free pages to the file system. Meant to be called in
+     * small slices, e.g. after a drain, instead of rewriting the whole file with a VACUUM.
+     */
+    public void compact(int maxPages) {
+        Log.v(TAG, "compact, maxPages: " + maxPages);
+        if (!this.maintenance.tryLock()) {
+            Log.v(TAG, "compact, maintenance already running");
+            return;
         }
-    }
 
-    private void shrink(SQLiteDatabase db, long limit, long dbSize) {
-        double limitPercentage = 1 - (double) limit / dbSize;
-        long numberOfMessages = this.getNumberOfMessages(db);
-        long numberOfMessagesToRemove = Math.round(numberOfMessages * limitPercentage);
-        numberOfMessagesToRemove = numberOfMessagesToRemove == 0 ? 1 : numberOfMessagesToRemove;
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            this.purgeDeletedBodyFiles(db);
+            this.incrementalVacuum(db, maxPages);
+        } finally {
+            this.maintenance.unlock();
+        }
+    }
 
+    private void purgeDeletedBodyFiles(SQLiteDatabase db) {
+        Cursor cursor = null;
+        long lastRowId = 0;
         try {
-            db.beginTransaction();
+            cursor = db.rawQuery("select rowid, name from DeletedBodyFile order by rowid", null);
+            while (cursor.moveToNext()) {
+                lastRowId = cursor.getLong(0);
+                if (!this.bodyFiles.delete(cursor.getString(1))) {
+                    Log.w(TAG, "purgeDeletedBodyFiles, cannot delete " + cursor.getString(1));
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
 
-            long thresholdId = this.getMessageIdToWhichShrink(db, numberOfMessagesToRemove);
+        if (lastRowId > 0) {
+            Log.v(TAG, "purgeDeletedBodyFiles, up to: " + lastRowId);
+            db.delete("DeletedBodyFile", "rowid <= ?", new String[]{String.valueOf(lastRowId)});
+        }
+    }
 
-            db.execSQL("delete from Message where id < " + thresholdId);
-            db.execSQL("delete from Header where messageid < " + thresholdId);
+    private void incrementalVacuum(SQLiteDatabase db, int maxPages) {
+        long freePages = this.queryLong(db, "pragma freelist_count");
+        Log.v(TAG, "incrementalVacuum, freePages: " + freePages);
+        if (freePages <= 0) {
+            return;
+        }
 
-            db.setTransactionSuccessful();
-        } finally {
-            if (db.inTransaction()) {
-                db.endTransaction();
+        // each slice is its own write transaction, so enqueues get in between slices
+        long pages = Math.min(freePages, maxPages);
+        while (pages > 0) {
+            int slice = (int) Math.min(pages, INCREMENTAL_VACUUM_SLICE_PAGES);
+            Cursor cursor = null;
+            try {
+                // the pragma frees one page per step, so the cursor has to be run to completion
+                cursor = db.rawQuery("pragma incremental_vacuum(" + slice + ")", null);
+                while (cursor.moveToNext()) {
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
             }
+            pages -= slice;
         }
     }
 
@@ -381,19 +1467,25 @@ public class Repository extends SQLiteOpenHelper {
         db.execSQL("vacuum");
     }
 
-    private long getMessageIdToWhichShrink(SQLiteDatabase db, long numberOfMessagesToRemove) {
+    /**
+     * Walks the queue oldest first and returns the id of the last message that has to go
+     * for at least {@code bytesToRemove} payload bytes to be freed, or 0 if none.
+     */
+    private long getMessageIdToWhichShrink(SQLiteDatabase db, long bytesToRemove) {
         Log.v(TAG, "getMessageIdToWhichShrink");
 
         Cursor cursor = null;
         try {
-            cursor = db.rawQuery("select id from Message limit 1 offset " + numberOfMessagesToRemove, null);
-            if (cursor.moveToFirst()) {
-                long id = cursor.getLong(0);
-                Log.v(TAG, "getMessageIdToWhichShrink, id: " + id);
-                return id;
+            long id = 0;
+            long removed = 0;
+            cursor = db.rawQuery("select id, size from Message order by id", null);
+            while (removed < bytesToRemove && cursor.moveToNext()) {
+                id = cursor.getLong(0);
+                removed += cursor.getLong(1);
             }
 
-            return 0;
+            Log.v(TAG, String.format("getMessageIdToWhichShrink, id: %d, bytes: %d", id, removed));
+            return id;
         } finally {
             if (cursor != null) {
                 cursor.close();
@@ -401,17 +1493,16 @@ public class Repository extends SQLiteOpenHelper {
         }
     }
 
-    private long getDbSize(SQLiteDatabase db) {
-        Log.v(TAG, "getDbSize");
+    private long getQueuedBytes(SQLiteDatabase db) {
+        return this.statements(db).queuedBytes();
+    }
 
+    private long queryLong(SQLiteDatabase db, String sql) {
         Cursor cursor = null;
-
         try {
-            cursor = db.rawQuery("pragma page_count", null);
-
+            cursor = db.rawQuery(sql, null);
             if (cursor.moveToFirst()) {
-                long pageCount = cursor.getLong(0);
-                return pageCount * db.getPageSize();
+                return cursor.getLong(0);
             }
 
             return 0;
@@ -424,25 +1515,75 @@ public class Repository extends SQLiteOpenHelper {
 
     public void decrementMessageTries(Message message) {
         Log.v(TAG, "decrementTries");
+        int numberOfTriesLeft = message.getNumberOfTries() - 1;
+        message.setNumberOfTries(numberOfTriesLeft);
+
         SQLiteDatabase db = this.getWritableDatabase();
+        int updated;
+        db.beginTransactionNonExclusive();
         try {
-            db.beginTransaction();
-            int numberOfTriesLeft = message.getNumberOfTries() - 1;
-            message.setNumberOfTries(numberOfTriesLeft);
-            ContentValues values = new ContentValues();
-            values.put("tries_left", numberOfTriesLeft);
-
-            long messageId = db.update("Message", values, "id = ?", new String[] { message.getId().toString() });
+            updated = this.statements(db).updateTriesLeft(message.getId(), numberOfTriesLeft);
             db.setTransactionSuccessful();
-
-            Log.v("reyna", "Repository: decremented tries for message " + messageId);
+        } finally {
+            db.endTransaction();
         }
-        finally {
-            if (db != null) {
-                if (db.inTransaction())
-                    db.endTransaction();
-                db.close();
+        Log.v("reyna", "Repository: decremented tries for message " + message.getId() + ", updated: " + updated);
+    }
+
+    public void updateCredentials(String username, String password) {
+        Log.v(TAG, "updateCredentials, username: " + username);
+
+        SQLiteDatabase db = this.getWritableDatabase();
+        RepositoryStatements statements = this.statements(db);
+        String[] user = new String[]{username};
+        db.beginTransactionNonExclusive();
+        try {
+            long credentialId = statements.findCredential(username, password);
+            if (credentialId == 0) {
+                Cursor cursor = db.rawQuery("SELECT min(id) FROM Credential WHERE username = ?", user);
+                try {
+                    credentialId = cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : 0;
+                } finally {
+                    cursor.close();
+                }
+                if (credentialId == 0) {
+                    db.setTransactionSuccessful();
+                    return;
+                }
+                db.execSQL("UPDATE Credential SET password = ? WHERE id = ?", new Object[]{password, credentialId});
             }
+
+            // older pairs of the same user are left in place, unreferenced
+            db.execSQL("UPDATE Message SET credential_id = ? WHERE credential_id IN " +
+                    "(SELECT id FROM Credential WHERE username = ? AND id <> ?)",
+                    new Object[]{credentialId, username, credentialId});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statements.forgetCredentials();
+        }
+    }
+
+    /**
+     * A message in the form it is written to the database.
+     */
+    private static final class StoredMessage {
+        final int codec;
+        final String text;
+        final byte[] data;
+        final byte[] headers;
+        final long size;
+        long endpointId;
+        long credentialId;
+
+        StoredMessage(Message message, int codec, String text, byte[] data, byte[] headers, long bodySize) {
+            this.codec = codec;
+            this.text = text;
+            this.data = data;
+            this.headers = headers;
+            this.size = bodySize
+                    + (headers != null ? headers.length : 0)
+                    + BodyCodec.utf8Length(message.getUrl());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,436 @@
+package it.sii.reyna;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statements of the hot {@link Repository} paths, compiled once per open database and
+ * reused with bound arguments. A statement can only run one binding at a time, so
+ * every use is synchronized on the statement itself.
+ * <p>
+ * Writing statements must only run inside a transaction. The thread then holds the primary
+ * connection before it takes a statement's monitor, so a writer can never wait for a monitor
+ * held by a thread that is itself waiting for the connection.
+ * <p>
+ * Endpoints are never deleted, so their ids and urls are cached for as long as the statements live.
+ * Credentials are never deleted either, but a rotation changes them, so their cache is dropped by
+ * {@link #forgetCredentials()}.
+ */
+class RepositoryStatements {
+
+    static final int DELETE_BATCH_SIZE = 500;
+
+    static final String INSERT =
+            "INSERT OR IGNORE INTO Message (endpoint_id, body, codec, credential_id, tries_left, headers, size, " +
+            "priority, expires_at, idempotency_key, coalesce_key) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    static final String DELETE_BY_ID = "DELETE FROM Message WHERE id = ?";
+
+    static final String UPDATE_TRIES_LEFT = "UPDATE Message SET tries_left = ? WHERE id = ?";
+
+    final SQLiteDatabase db;
+
+    final HeaderDictionary headers;
+
+    private final SQLiteStatement insert;
+
+    private final SQLiteStatement deleteById;
+
+    private final SQLiteStatement deleteUpTo;
+
+    private final SQLiteStatement deleteBatch;
+
+    private final SQLiteStatement updateTriesLeft;
+
+    private final SQLiteStatement queuedBytes;
+
+    private final SQLiteStatement queuedMessages;
+
+    private final SQLiteStatement deleteExpired;
+
+    private final SQLiteStatement countWithIdempotencyKey;
+
+    private final SQLiteStatement oldestForEndpoint;
+
+    private final SQLiteStatement countForEndpoint;
+
+    private final SQLiteStatement insertEndpoint;
+
+    private final SQLiteStatement endpointByUrl;
+
+    private final SQLiteStatement urlByEndpoint;
+
+    private final Map<String, Long> endpointIds = new HashMap<String, Long>();
+
+    private final Map<Long, String> endpointUrls = new HashMap<Long, String>();
+
+    private final SQLiteStatement insertCredential;
+
+    private final SQLiteStatement credentialByValue;
+
+    private final Map<List<String>, Long> credentialIds = new HashMap<List<String>, Long>();
+
+    private final Map<Long, Credential> credentials = new HashMap<Long, Credential>();
+
+    RepositoryStatements(SQLiteDatabase db) {
+        this.db = db;
+        this.headers = new HeaderDictionary(db);
+        this.insert = db.compileStatement(INSERT);
+        this.deleteById = db.compileStatement(DELETE_BY_ID);
+        this.deleteUpTo = db.compileStatement("DELETE FROM Message WHERE id <= ?");
+        this.deleteBatch = db.compileStatement("DELETE FROM Message WHERE id IN (" + placeholders(DELETE_BATCH_SIZE) + ")");
+        this.updateTriesLeft = db.compileStatement(UPDATE_TRIES_LEFT);
+        this.queuedBytes = db.compileStatement("SELECT bytes FROM QueueStats WHERE id = 0");
+        this.queuedMessages = db.compileStatement("SELECT messages FROM QueueStats WHERE id = 0");
+        this.deleteExpired = db.compileStatement("DELETE FROM Message WHERE expires_at <= ?");
+        this.countWithIdempotencyKey = db.compileStatement("SELECT count(*) FROM Message WHERE idempotency_key = ?");
+        this.oldestForEndpoint = db.compileStatement("SELECT ifnull(min(id), 0) FROM Message WHERE endpoint_id = ?");
+        this.countForEndpoint = db.compileStatement("SELECT messages FROM Endpoint WHERE id = ?");
+        this.insertEndpoint = db.compileStatement("INSERT OR IGNORE INTO Endpoint (url) VALUES (?)");
+        this.endpointByUrl = db.compileStatement("SELECT id FROM Endpoint WHERE url = ?");
+        this.urlByEndpoint = db.compileStatement("SELECT url FROM Endpoint WHERE id = ?");
+        this.insertCredential = db.compileStatement("INSERT INTO Credential (username, password) VALUES (?, ?)");
+        this.credentialByValue = db.compileStatement(
+                "SELECT ifnull(min(id), 0) FROM Credential WHERE username IS ? AND password IS ?");
+    }
+
+    /**
+     * Returns the new message id, or -1 when a message with the same idempotency key is already queued.
+     */
+    long insert(long endpointId, String text, byte[] data, int codec, long credentialId, Integer triesLeft,
+                byte[] headers, long size, int priority, Long expiresAt, String idempotencyKey, String coalesceKey) {
+        synchronized (this.insert) {
+            this.insert.bindLong(1, endpointId);
+            if (data != null) {
+                this.insert.bindBlob(2, data);
+            } else {
+                bindString(this.insert, 2, text);
+            }
+            this.insert.bindLong(3, codec);
+            if (credentialId != 0) {
+                this.insert.bindLong(4, credentialId);
+            } else {
+                this.insert.bindNull(4);
+            }
+            if (triesLeft != null) {
+                this.insert.bindLong(5, triesLeft);
+            } else {
+                this.insert.bindNull(5);
+            }
+            bindBlob(this.insert, 6, headers);
+            this.insert.bindLong(7, size);
+            this.insert.bindLong(8, priority);
+            if (expiresAt != null) {
+                this.insert.bindLong(9, expiresAt);
+            } else {
+                this.insert.bindNull(9);
+            }
+            bindString(this.insert, 10, idempotencyKey);
+            bindString(this.insert, 11, coalesceKey);
+            try {
+                return this.insert.executeInsert();
+            } finally {
+                this.insert.clearBindings();
+            }
+        }
+    }
+
+    int deleteById(long id) {
+        synchronized (this.deleteById) {
+            this.deleteById.bindLong(1, id);
+            return this.deleteById.executeUpdateDelete();
+        }
+    }
+
+    int deleteUpTo(long id) {
+        synchronized (this.deleteUpTo) {
+            this.deleteUpTo.bindLong(1, id);
+            return this.deleteUpTo.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Deletes the {@value #DELETE_BATCH_SIZE} ids starting at {@code offset}.
+     */
+    int deleteBatch(long[] ids, int offset) {
+        synchronized (this.deleteBatch) {
+            for (int i = 0; i < DELETE_BATCH_SIZE; i++) {
+                this.deleteBatch.bindLong(i + 1, ids[offset + i]);
+            }
+            return this.deleteBatch.executeUpdateDelete();
+        }
+    }
+
+    int updateTriesLeft(long id, int triesLeft) {
+        synchronized (this.updateTriesLeft) {
+            this.updateTriesLeft.bindLong(1, triesLeft);
+            this.updateTriesLeft.bindLong(2, id);
+            return this.updateTriesLeft.executeUpdateDelete();
+        }
+    }
+
+    int deleteExpired(long now) {
+        synchronized (this.deleteExpired) {
+            this.deleteExpired.bindLong(1, now);
+            return this.deleteExpired.executeUpdateDelete();
+        }
+    }
+
+    boolean hasIdempotencyKey(String key) {
+        synchronized (this.countWithIdempotencyKey) {
+            this.countWithIdempotencyKey.bindString(1, key);
+            return this.countWithIdempotencyKey.simpleQueryForLong() > 0;
+        }
+    }
+
+    long queuedBytes() {
+        synchronized (this.queuedBytes) {
+            return this.queuedBytes.simpleQueryForLong();
+        }
+    }
+
+    long queuedMessages() {
+        synchronized (this.queuedMessages) {
+            return this.queuedMessages.simpleQueryForLong();
+        }
+    }
+
+    /**
+     * Returns the oldest queued message id for the endpoint, or 0 if there is none.
+     */
+    long oldestForEndpoint(long endpointId) {
+        synchronized (this.oldestForEndpoint) {
+            this.oldestForEndpoint.bindLong(1, endpointId);
+            return this.oldestForEndpoint.simpleQueryForLong();
+        }
+    }
+
+    long countForEndpoint(long endpointId) {
+        synchronized (this.countForEndpoint) {
+            this.countForEndpoint.bindLong(1, endpointId);
+            return this.countForEndpoint.simpleQueryForLong();
+        }
+    }
+
+    /**
+     * Returns the id of the endpoint for the url, adding it if it is not known yet. A new
+     * endpoint is committed in a transaction of its own, so this must not be called inside
+     * another transaction: a rollback would leave a cached id pointing to no endpoint.
+     */
+    long endpointId(String url) {
+        synchronized (this.endpointIds) {
+            Long id = this.endpointIds.get(url);
+            if (id != null) {
+                return id;
+            }
+        }
+
+        long id;
+        this.db.beginTransactionNonExclusive();
+        try {
+            synchronized (this.endpointIds) {
+                this.insertEndpoint.bindString(1, url);
+                this.insertEndpoint.executeInsert();
+                this.endpointByUrl.bindString(1, url);
+                id = this.endpointByUrl.simpleQueryForLong();
+            }
+            this.db.setTransactionSuccessful();
+        } finally {
+            this.db.endTransaction();
+        }
+
+        synchronized (this.endpointIds) {
+            this.cacheEndpoint(id, url);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the id of the endpoint for the url, or 0 if no message was ever queued for it.
+     */
+    long findEndpointId(String url) {
+        synchronized (this.endpointIds) {
+            Long id = this.endpointIds.get(url);
+            if (id != null) {
+                return id;
+            }
+
+            Cursor cursor = this.db.rawQuery("SELECT id FROM Endpoint WHERE url = ?", new String[]{url});
+            try {
+                if (!cursor.moveToFirst()) {
+                    return 0;
+                }
+                this.cacheEndpoint(cursor.getLong(0), url);
+                return cursor.getLong(0);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the url of the endpoint. Messages of the same endpoint share the returned string.
+     */
+    String endpointUrl(long endpointId) {
+        synchronized (this.endpointIds) {
+            String url = this.endpointUrls.get(endpointId);
+            if (url == null) {
+                this.urlByEndpoint.bindLong(1, endpointId);
+                url = this.urlByEndpoint.simpleQueryForString();
+                this.cacheEndpoint(endpointId, url);
+            }
+            return url;
+        }
+    }
+
+    private void cacheEndpoint(long id, String url) {
+        this.endpointIds.put(url, id);
+        this.endpointUrls.put(id, url);
+    }
+
+    /**
+     * Returns the id of the credential pair, adding it if it is not known yet, or 0 for a message
+     * without credentials. Like {@link #endpointId(String)}, it must not be called inside another transaction.
+     */
+    long credentialId(String username, String password) {
+        if (username == null && password == null) {
+            return 0;
+        }
+
+        List<String> key = Arrays.asList(username, password);
+        synchronized (this.credentialIds) {
+            Long id = this.credentialIds.get(key);
+            if (id != null) {
+                return id;
+            }
+        }
+
+        long id;
+        this.db.beginTransactionNonExclusive();
+        try {
+            synchronized (this.credentialIds) {
+                id = this.findCredential(username, password);
+                if (id == 0) {
+                    bindString(this.insertCredential, 1, username);
+                    bindString(this.insertCredential, 2, password);
+                    id = this.insertCredential.executeInsert();
+                }
+            }
+            this.db.setTransactionSuccessful();
+        } finally {
+            this.db.endTransaction();
+        }
+
+        synchronized (this.credentialIds) {
+            this.credentialIds.put(key, id);
+            this.credentials.put(id, new Credential(username, password));
+        }
+        return id;
+    }
+
+    /**
+     * Returns the id of the credential pair, or 0 if it was never stored.
+     */
+    long findCredential(String username, String password) {
+        synchronized (this.credentialByValue) {
+            bindString(this.credentialByValue, 1, username);
+            bindString(this.credentialByValue, 2, password);
+            return this.credentialByValue.simpleQueryForLong();
+        }
+    }
+
+    /**
+     * Returns the credential pair. Messages sharing a credential share the returned strings.
+     */
+    Credential credential(long credentialId) {
+        synchronized (this.credentialIds) {
+            Credential credential = this.credentials.get(credentialId);
+            if (credential != null) {
+                return credential;
+            }
+
+            Cursor cursor = this.db.rawQuery("SELECT username, password FROM Credential WHERE id = ?",
+                    new String[]{Long.toString(credentialId)});
+            try {
+                credential = cursor.moveToFirst() ? new Credential(cursor.getString(0), cursor.getString(1))
+                        : Credential.NONE;
+            } finally {
+                cursor.close();
+            }
+            this.credentialIds.put(Arrays.asList(credential.username, credential.password), credentialId);
+            this.credentials.put(credentialId, credential);
+            return credential;
+        }
+    }
+
+    void forgetCredentials() {
+        synchronized (this.credentialIds) {
+            this.credentialIds.clear();
+            this.credentials.clear();
+        }
+    }
+
+    void close() {
+        this.insert.close();
+        this.deleteById.close();
+        this.deleteUpTo.close();
+        this.deleteBatch.close();
+        this.updateTriesLeft.close();
+        this.queuedBytes.close();
+        this.queuedMessages.close();
+        this.deleteExpired.close();
+        this.countWithIdempotencyKey.close();
+        this.oldestForEndpoint.close();
+        this.countForEndpoint.close();
+        this.insertEndpoint.close();
+        this.endpointByUrl.close();
+        this.urlByEndpoint.close();
+        this.insertCredential.close();
+        this.credentialByValue.close();
+        this.headers.close();
+    }
+
+    static final class Credential {
+
+        static final Credential NONE = new Credential(null, null);
+
+        final String username;
+
+        final String password;
+
+        Credential(String username, String password) {
+            this.username = username;
+            this.password = password;
+        }
+    }
+
+    static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            builder.append(i == 0 ? "?" : ",?");
+        }
+        return builder.toString();
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    private static void bindBlob(SQLiteStatement statement, int index, byte[] value) {
+        if (value != null) {
+            statement.bindBlob(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+}
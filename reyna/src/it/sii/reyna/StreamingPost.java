@@ -0,0 +1,187 @@
+package it.sii.reyna;
+
+import android.util.Base64;
+import android.util.Log;
+import it.sad.sii.network.RestResponse;
+import it.sii.reyna.Dispatcher.Result;
+import it.sii.reyna.Dispatcher.ResultStatus;
+import it.sii.reyna.system.Header;
+import it.sii.reyna.system.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Posts a message body straight from its file, or from its raw bytes, to the connection
+ * with a fixed content length, so that the body is never copied or held in memory as text.
+ * RestClient only posts bodies held in a String, so these posts go through HttpURLConnection,
+ * set up like the RestClient ones: the same timeout, Basic credentials and default Content-Type,
+ * and results classified by {@link #isTransientStatus} like those of RestResponse.
+ */
+final class StreamingPost {
+
+    private static final String TAG = "StreamingPost";
+
+    private static final int MAX_ERROR_BODY = 64 * 1024;
+
+    private static final String OCTET_STREAM = "application/octet-stream";
+
+    private static final String TEXT_PLAIN = "text/plain; charset=UTF-8";
+
+    private StreamingPost() {
+    }
+
+    private interface Body {
+        void writeTo(OutputStream out, long length) throws IOException;
+    }
+
+    static Result post(Message message, final File file) {
+        Log.v(TAG, "post, file: " + file);
+
+        return post(message, file.length(), new Body() {
+            @Override
+            public void writeTo(OutputStream out, long length) throws IOException {
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    transfer(in.getChannel(), Channels.newChannel(out), length);
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Posts a binary body as-is, writing the array straight to the connection.
+     */
+    static Result post(Message message, byte[] bytes) {
+        final byte[] body = bytes == null ? new byte[0] : bytes;
+        Log.v(TAG, "post, bytes: " + body.length);
+
+        return post(message, body.length, new Body() {
+            @Override
+            public void writeTo(OutputStream out, long length) throws IOException {
+                out.write(body);
+            }
+        });
+    }
+
+    private static Result post(Message message, long length, Body body) {
+        HttpURLConnection connection = null;
+        try {
+            if (length > Integer.MAX_VALUE) {
+                return new Result(ResultStatus.PERMANENT_ERROR, "Body too large: " + length);
+            }
+
+            connection = open(message);
+            connection.setFixedLengthStreamingMode((int) length);
+
+            OutputStream out = connection.getOutputStream();
+            try {
+                body.writeTo(out, length);
+            } finally {
+                out.close();
+            }
+
+            return result(connection);
+        } catch (Exception e) {
+            Log.d(TAG, "Exception in StreamingPost.post", e);
+            if (RestResponse.isTransientException(e))
+                return new Result(ResultStatus.TEMPORARY_ERROR, e.getMessage());
+            else
+                return new Result(ResultStatus.PERMANENT_ERROR, e.getMessage());
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static HttpURLConnection open(Message message) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(message.getUrl()).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(Dispatcher.TIMEOUT_MILLISECONDS);
+        connection.setReadTimeout(Dispatcher.TIMEOUT_MILLISECONDS);
+
+        if (message.getUsername() != null) {
+            String credentials = message.getUsername() + ":" + (message.getPassword() == null ? "" : message.getPassword());
+            connection.setRequestProperty("Authorization",
+                    "Basic " + Base64.encodeToString(credentials.getBytes("UTF-8"), Base64.NO_WRAP));
+        }
+
+        // the message headers may override the default type
+        connection.setRequestProperty("Content-Type", message.isBinary() ? OCTET_STREAM : TEXT_PLAIN);
+        for (Header header : message.getHeaders()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        return connection;
+    }
+
+    private static void transfer(FileChannel source, WritableByteChannel target, long length) throws IOException {
+        long position = 0;
+        while (position < length) {
+            long transferred = source.transferTo(position, length - position, target);
+            if (transferred <= 0) {
+                throw new IOException("Body file truncated at " + position + " of " + length);
+            }
+            position += transferred;
+        }
+    }
+
+    private static Result result(HttpURLConnection connection) throws IOException {
+        int code = connection.getResponseCode();
+        Log.v(TAG, "result, code: " + code);
+        if (code >= 200 && code < 300) {
+            return new Result(ResultStatus.OK);
+        }
+
+        String data = readError(connection);
+        if (isTransientStatus(code))
+            return new Result(ResultStatus.TEMPORARY_ERROR, data);
+        else
+            return new Result(ResultStatus.PERMANENT_ERROR, data);
+    }
+
+    /**
+     * Whether a failed post may succeed if retried: server errors, request timeouts and
+     * throttling, as for {@link RestResponse#isTransientFailure()}.
+     */
+    private static boolean isTransientStatus(int code) {
+        return code >= 500 || code == 408 || code == 429;
+    }
+
+    private static String readError(HttpURLConnection connection) {
+        InputStream in = connection.getErrorStream();
+        if (in == null) {
+            return null;
+        }
+
+        try {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int count;
+                while (out.size() < MAX_ERROR_BODY && (count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                return out.toString("UTF-8");
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "readError", e);
+            return null;
+        }
+    }
+}
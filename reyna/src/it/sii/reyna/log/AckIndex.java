@@ -0,0 +1,121 @@
+package it.sii.reyna.log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ids of the acknowledged messages that still sit in a segment, appended to a file as
+ * they are acknowledged. Once a segment is dropped its ids are obsolete; {@link #rewrite}
+ * keeps the file down to the acknowledgements of the live segments, so it stays small.
+ * <p>
+ * Acknowledgements are not forced to disk: losing the last ones in a crash only means that
+ * their messages are sent again. Not thread-safe: {@link LogMessageStore} serializes all access.
+ */
+final class AckIndex {
+
+    private final File file;
+
+    private DataOutputStream out = null;
+
+    private long entries = 0;
+
+    AckIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the acknowledged ids, ignoring a truncated last entry.
+     */
+    List<Long> load() throws IOException {
+        List<Long> ids = new ArrayList<Long>();
+        if (!this.file.exists()) {
+            return ids;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        try {
+            while (true) {
+                ids.add(in.readLong());
+            }
+        } catch (EOFException e) {
+            this.entries = ids.size();
+            return ids;
+        } finally {
+            close(in);
+        }
+    }
+
+    void append(long[] ids, int count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+
+        if (this.out == null) {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file, true)));
+        }
+        for (int i = 0; i < count; i++) {
+            this.out.writeLong(ids[i]);
+        }
+        this.out.flush();
+        this.entries += count;
+    }
+
+    /**
+     * Replaces the file with the given ids, through a temporary file so that a crash
+     * leaves either the old or the new index.
+     */
+    void rewrite(List<long[]> ids) throws IOException {
+        this.close();
+
+        File temporary = new File(this.file.getPath() + ".tmp");
+        DataOutputStream rewritten = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+        long written = 0;
+        try {
+            for (long[] chunk : ids) {
+                for (long id : chunk) {
+                    rewritten.writeLong(id);
+                }
+                written += chunk.length;
+            }
+        } finally {
+            rewritten.close();
+        }
+
+        if (!temporary.renameTo(this.file)) {
+            temporary.delete();
+            throw new IOException("Cannot replace " + this.file);
+        }
+        this.entries = written;
+    }
+
+    /**
+     * Number of ids in the file, obsolete ones included.
+     */
+    long entries() {
+        return this.entries;
+    }
+
+    void close() {
+        if (this.out != null) {
+            close(this.out);
+            this.out = null;
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
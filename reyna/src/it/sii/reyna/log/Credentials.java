@@ -0,0 +1,166 @@
+package it.sii.reyna.log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The credentials of the queued messages, by id, as the Credential table of {@link it.sii.reyna.Repository}.
+ * Records only hold the id, so a rotation changes the password of the user's entries here and applies to
+ * the messages already queued; a message enqueued afterwards gets the entry of its own password. Entries
+ * are never deleted. The file is replaced whole on every change, through a temporary file, and changes
+ * only when a new username and password pair is enqueued or a password is rotated.
+ * <p>
+ * Not thread-safe: {@link LogMessageStore} serializes all access.
+ */
+final class Credentials {
+
+    // stands for a message without username and password
+    static final long NONE = 0;
+
+    private final File file;
+
+    // by id, in the order they were added
+    private final TreeMap<Long, Credential> credentials = new TreeMap<Long, Credential>();
+
+    // the lowest id of each username and password pair
+    private final Map<List<String>, Long> ids = new HashMap<List<String>, Long>();
+
+    private long nextId = 1;
+
+    Credentials(File file) {
+        this.file = file;
+    }
+
+    void load() throws IOException {
+        this.credentials.clear();
+        this.nextId = 1;
+        if (this.file.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+            try {
+                while (true) {
+                    long id = in.readLong();
+                    String username = readString(in);
+                    this.credentials.put(id, new Credential(username, readString(in)));
+                    this.nextId = Math.max(this.nextId, id + 1);
+                }
+            } catch (EOFException e) {
+                // end of the entries
+            } finally {
+                in.close();
+            }
+        }
+        this.index();
+    }
+
+    /**
+     * Returns the id of the username and password, adding them if they are new.
+     */
+    long idOf(String username, String password) throws IOException {
+        if (username == null && password == null) {
+            return NONE;
+        }
+
+        Long id = this.ids.get(Arrays.asList(username, password));
+        if (id != null) {
+            return id;
+        }
+        id = this.nextId++;
+        this.credentials.put(id, new Credential(username, password));
+        this.ids.put(Arrays.asList(username, password), id);
+        this.save();
+        return id;
+    }
+
+    Credential get(long id) {
+        Credential credential = this.credentials.get(id);
+        return credential != null ? credential : Credential.NONE;
+    }
+
+    /**
+     * Sets the password of every entry of the user, and so of every queued message of the user.
+     */
+    void rotate(String username, String password) throws IOException {
+        boolean changed = false;
+        for (Map.Entry<Long, Credential> entry : this.credentials.entrySet()) {
+            Credential credential = entry.getValue();
+            if (equal(credential.username, username) && !equal(credential.password, password)) {
+                entry.setValue(new Credential(username, password));
+                changed = true;
+            }
+        }
+        if (changed) {
+            this.index();
+            this.save();
+        }
+    }
+
+    private void index() {
+        this.ids.clear();
+        for (Map.Entry<Long, Credential> entry : this.credentials.entrySet()) {
+            List<String> pair = Arrays.asList(entry.getValue().username, entry.getValue().password);
+            if (!this.ids.containsKey(pair)) {
+                this.ids.put(pair, entry.getKey());
+            }
+        }
+    }
+
+    private void save() throws IOException {
+        File temporary = new File(this.file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+        try {
+            for (Map.Entry<Long, Credential> entry : this.credentials.entrySet()) {
+                out.writeLong(entry.getKey());
+                writeString(out, entry.getValue().username);
+                writeString(out, entry.getValue().password);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!temporary.renameTo(this.file)) {
+            temporary.delete();
+            throw new IOException("Cannot replace " + this.file);
+        }
+    }
+
+    private static boolean equal(String lhs, String rhs) {
+        return lhs == null ? rhs == null : lhs.equals(rhs);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    static final class Credential {
+
+        static final Credential NONE = new Credential(null, null);
+
+        final String username;
+
+        final String password;
+
+        Credential(String username, String password) {
+            this.username = username;
+            this.password = password;
+        }
+    }
+}
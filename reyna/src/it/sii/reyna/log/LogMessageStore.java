@@ -0,0 +1,814 @@
+package it.sii.reyna.log;
+
+import android.content.Context;
+import android.util.Log;
+import it.sii.reyna.IMessageStore;
+import it.sii.reyna.QueuePosition;
+import it.sii.reyna.system.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The message queue as an append-only log of memory-mapped segment files, shared by the whole
+ * process (see {@link #open}). An enqueue is a copy into the mapped tail segment and one flush of
+ * its dirty pages; there is no index to maintain and nothing to vacuum. Delivered messages are
+ * recorded in the {@link AckIndex}, and a segment file is deleted as soon as all of its messages
+ * are acknowledged. Eviction drops whole segments, oldest first.
+ * <p>
+ * Messages are delivered by priority, then in arrival order, and enqueues are deduplicated by idempotency
+ * key and coalesced by coalesce key, as in {@link it.sii.reyna.Repository}. The keys of the queued messages,
+ * the ids of those away from {@link Message#PRIORITY_NORMAL} and their number by url are kept in memory
+ * and rebuilt from the log when it is opened; a coalesced message is acknowledged right after its
+ * replacement is appended, so a crash in between leaves both queued. All operations are serialized on the store; each one only
+ * touches memory and the page cache.
+ * <p>
+ * Records hold the id of their username and password in {@link Credentials}, so a credential rotation
+ * changes the password of the messages already queued, as in the repository, without rewriting them.
+ * Leases only live in memory: the log belongs to one process, and a lease never outlives the workers
+ * of the process that took it.
+ */
+public class LogMessageStore implements IMessageStore {
+
+    private static final String TAG = "LogMessageStore";
+
+    private static final String DIRECTORY = "reyna_log";
+
+    private static final String ACK_INDEX = "acks";
+
+    private static final String CREDENTIALS = "credentials";
+
+    // a larger message gets a segment of its own, sized to fit
+    public static final int SEGMENT_BYTES = 1024 * 1024; // 1Mb
+
+    private static final int SIZE_DIFFERENCE_TO_START_CLEANING = 307200; //300Kb in bytes
+
+    private static LogMessageStore instance = null;
+
+    private static int referenceCount = 0;
+
+    private final File directory;
+
+    private final AckIndex acks;
+
+    private final Credentials credentials;
+
+    // by first id, oldest first; the last one is the tail that takes the appends
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+    private long nextId = 1;
+
+    private long obsoleteAcks = 0;
+
+    // by message id
+    private final Map<Long, Lease> leases = new HashMap<Long, Lease>();
+
+    // ids by key; an entry may outlive its message until the segment goes, so check isQueued
+    private final Map<String, Long> idempotencyKeys = new HashMap<String, Long>();
+
+    private final Map<String, Long> coalesceKeys = new HashMap<String, Long>();
+
+    // priority by id, for the messages away from the normal priority only
+    private final TreeMap<Long, Integer> priorities = new TreeMap<Long, Integer>();
+
+    // number of queued messages by url
+    private final Map<String, Long> urlCounts = new HashMap<String, Long>();
+
+    private volatile boolean bodyCompression = true;
+
+    /**
+     * Opens the log in {@code directory}, creating it if needed.
+     */
+    public LogMessageStore(File directory) {
+        this.directory = directory;
+        this.acks = new AckIndex(new File(directory, ACK_INDEX));
+        this.credentials = new Credentials(new File(directory, CREDENTIALS));
+        this.load();
+    }
+
+    /**
+     * Returns the process-wide log store, opening it on first use.
+     * Every call must be balanced by a call to {@link #close()}; the segment
+     * files are closed only when the last reference is released.
+     */
+    public static LogMessageStore open(Context context) {
+        synchronized (LogMessageStore.class) {
+            if (instance == null) {
+                Log.v(TAG, "open, creating shared log store");
+                instance = new LogMessageStore(context.getApplicationContext().getDir(DIRECTORY, Context.MODE_PRIVATE));
+            }
+
+            referenceCount++;
+            Log.v(TAG, "open, references: " + referenceCount);
+            return instance;
+        }
+    }
+
+    /**
+     * Maps the segments, drops the torn or fully acknowledged ones and rewrites the acknowledgement
+     * index without obsolete ids. Ids restart at 1 only when no segment is left, and then no
+     * acknowledgement is left either.
+     */
+    private synchronized void load() {
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            Log.e(TAG, "load, cannot create " + this.directory);
+        }
+
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (!Segment.isSegment(file)) {
+                    continue;
+                }
+
+                try {
+                    Segment segment = Segment.open(file);
+                    if (segment.count() == 0 || segment.firstId < this.nextId) {
+                        segment.delete();
+                        continue;
+                    }
+                    this.segments.put(segment.firstId, segment);
+                    this.nextId = segment.nextId();
+                } catch (IOException e) {
+                    Log.e(TAG, "load, dropping unreadable segment " + file.getName(), e);
+                    file.delete();
+                }
+            }
+        }
+
+        try {
+            for (long id : this.acks.load()) {
+                Segment segment = this.segmentOf(id);
+                if (segment != null) {
+                    segment.ack(id);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "load, cannot read the acknowledgements, messages may be sent again", e);
+        }
+
+        try {
+            this.credentials.load();
+        } catch (IOException e) {
+            Log.e(TAG, "load, cannot read the credentials", e);
+        }
+
+        this.dropAcknowledged();
+        this.rewriteAcks();
+
+        for (Segment segment : this.segments.values()) {
+            for (long id = segment.firstId; id < segment.nextId(); id++) {
+                if (!segment.isAcked(id)) {
+                    String[] keys = Records.keys(segment.payload(id));
+                    this.index(id, segment.priority(id), keys[0], keys[1]);
+                    this.count(segment.url(id), 1);
+                }
+            }
+        }
+        Log.v(TAG, String.format("load, segments: %d, messages: %d", this.segments.size(), this.getAvailableMessagesCount()));
+    }
+
+    public void setBodyCompression(boolean bodyCompression) {
+        this.bodyCompression = bodyCompression;
+    }
+
+    public void insert(Message message) {
+        this.insert(message, -1);
+    }
+
+    /**
+     * Appends the message, first dropping the oldest segments if the queue would grow past
+     * {@code dbSizeLimit} (-1 for no limit).
+     */
+    public void insert(Message message, long dbSizeLimit) {
+        Log.v(TAG, "insert");
+        this.insertAll(Collections.singletonList(message), dbSizeLimit);
+    }
+
+    /**
+     * Appends the messages and flushes the segments once, so that a burst of enqueues costs
+     * one write to disk. A message whose idempotency key is already queued is skipped; one with
+     * a coalesce key replaces the queued message with that key, which is then acknowledged.
+     */
+    public void insertAll(List<Message> messages, long dbSizeLimit) {
+        Log.v(TAG, "insertAll, messages: " + messages.size());
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        long[] credentialIds = this.credentialIds(messages);
+        List<byte[]> payloads = new ArrayList<byte[]>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            payloads.add(Records.encode(messages.get(i), credentialIds[i], this.bodyCompression));
+        }
+
+        synchronized (this) {
+            boolean[] skipped = this.skipped(messages);
+            long size = 0;
+            for (int i = 0; i < payloads.size(); i++) {
+                if (!skipped[i]) {
+                    size += payloads.get(i).length;
+                }
+            }
+            if (dbSizeLimit != -1 && this.getQueuedBytes() + size > dbSizeLimit) {
+                this.evict(this.getQueuedBytes() + size - dbSizeLimit + SIZE_DIFFERENCE_TO_START_CLEANING);
+            }
+
+            List<Segment> written = new ArrayList<Segment>();
+            long[] appended = new long[payloads.size()];
+            int count = 0;
+            try {
+                for (int i = 0; i < payloads.size(); i++) {
+                    if (skipped[i]) {
+                        appended[i] = -1;
+                        continue;
+                    }
+                    Segment tail = this.tailFor(payloads.get(i).length);
+                    Integer triesLeft = messages.get(i).getNumberOfTries();
+                    appended[i] = tail.append(payloads.get(i), triesLeft != null ? triesLeft : Segment.NO_TRIES);
+                    this.count(messages.get(i).getUrl(), 1);
+                    count++;
+                    this.nextId = tail.nextId();
+                    if (!written.contains(tail)) {
+                        written.add(tail);
+                    }
+                }
+            } catch (IOException e) {
+                // all or nothing: what was appended is acknowledged right away, the caller may retry
+                long[] ids = new long[count];
+                for (int i = 0, next = 0; next < count; i++) {
+                    if (!skipped[i]) {
+                        ids[next++] = appended[i];
+                    }
+                }
+                this.deleteAll(ids);
+                throw new IllegalStateException("Cannot append to the log in " + this.directory, e);
+            } finally {
+                for (Segment segment : written) {
+                    segment.force();
+                }
+            }
+
+            long[] replaced = new long[count];
+            int replacedCount = 0;
+            for (int i = 0; i < messages.size(); i++) {
+                if (skipped[i]) {
+                    continue;
+                }
+                Message message = messages.get(i);
+                Long previous = this.index(appended[i], message.getPriority(), message.getIdempotencyKey(),
+                        message.getCoalesceKey());
+                if (previous != null && this.isQueued(previous) && this.ack(this.segmentOf(previous), previous)) {
+                    replaced[replacedCount++] = previous;
+                    this.leases.remove(previous);
+                }
+            }
+            if (replacedCount > 0) {
+                Log.v(TAG, "insertAll, coalesced: " + replacedCount);
+                this.persistAcks(replaced, replacedCount);
+                this.dropAcknowledged();
+            }
+        }
+    }
+
+    /**
+     * Flags the messages not to append: those whose idempotency key is queued or came earlier in
+     * the batch, and those replaced by a later message of the batch with the same coalesce key.
+     */
+    private boolean[] skipped(List<Message> messages) {
+        boolean[] skipped = new boolean[messages.size()];
+        Set<String> batchKeys = new HashSet<String>();
+        Map<String, Integer> coalesced = new HashMap<String, Integer>();
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            String key = message.getIdempotencyKey();
+            if (key != null && (this.isQueued(this.idempotencyKeys.get(key)) || !batchKeys.add(key))) {
+                Log.v(TAG, "insertAll, duplicate idempotency key: " + key);
+                skipped[i] = true;
+                continue;
+            }
+
+            if (message.getCoalesceKey() != null) {
+                Integer replaced = coalesced.put(message.getCoalesceKey(), i);
+                if (replaced != null) {
+                    skipped[replaced] = true;
+                }
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * Indexes an appended message and returns the id previously queued with its coalesce key, if any.
+     */
+    private Long index(long id, int priority, String idempotencyKey, String coalesceKey) {
+        if (priority != Message.PRIORITY_NORMAL) {
+            this.priorities.put(id, priority);
+        }
+        if (idempotencyKey != null) {
+            this.idempotencyKeys.put(idempotencyKey, id);
+        }
+        return coalesceKey != null ? this.coalesceKeys.put(coalesceKey, id) : null;
+    }
+
+    private void count(String url, long delta) {
+        Long count = this.urlCounts.get(url);
+        long updated = (count != null ? count : 0) + delta;
+        if (updated > 0) {
+            this.urlCounts.put(url, updated);
+        } else {
+            this.urlCounts.remove(url);
+        }
+    }
+
+    /**
+     * Acknowledges a message in its segment; the caller persists the acknowledgement.
+     */
+    private boolean ack(Segment segment, long id) {
+        if (!segment.ack(id)) {
+            return false;
+        }
+        this.count(segment.url(id), -1);
+        return true;
+    }
+
+    private boolean isQueued(Long id) {
+        if (id == null) {
+            return false;
+        }
+        Segment segment = this.segmentOf(id);
+        return segment != null && !segment.isAcked(id);
+    }
+
+    /**
+     * Returns the tail segment if the payload fits in it, or a new one.
+     */
+    private Segment tailFor(int payloadLength) throws IOException {
+        Segment tail = this.tail();
+        if (tail != null && tail.fits(payloadLength)) {
+            return tail;
+        }
+
+        if (tail != null && tail.live() == 0) {
+            this.drop(tail);
+        }
+        int capacity = (int) Math.max(SEGMENT_BYTES, (long) Segment.RECORD_HEADER_BYTES + payloadLength);
+        Segment segment = Segment.create(this.directory, this.nextId, capacity);
+        this.segments.put(segment.firstId, segment);
+        Log.v(TAG, "tailFor, new segment " + segment.file.getName());
+        return segment;
+    }
+
+    public Message getNext() throws URISyntaxException {
+        Log.v(TAG, "getNext");
+
+        List<Message> messages = this.getNextBatch(1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    public List<Message> getNextBatch(int count) throws URISyntaxException {
+        return this.getNextBatchAfter(null, count, Long.MAX_VALUE);
+    }
+
+    public synchronized List<Message> getNextBatchAfter(QueuePosition position, int count, long maxBytes) throws URISyntaxException {
+        Log.v(TAG, String.format("getNextBatchAfter, position: %s, count: %d, maxBytes: %d", position, count, maxBytes));
+        return this.read(position, count, maxBytes, System.currentTimeMillis());
+    }
+
+    public synchronized List<Message> claim(String worker, int count, long maxBytes, long now, long leaseMillis) throws URISyntaxException {
+        Log.v(TAG, String.format("claim, worker: %s, count: %d, maxBytes: %d", worker, count, maxBytes));
+
+        Iterator<Map.Entry<Long, Lease>> expired = this.leases.entrySet().iterator();
+        while (expired.hasNext()) {
+            Map.Entry<Long, Lease> lease = expired.next();
+            if (lease.getValue().until <= now) {
+                Log.w(TAG, String.format("claim, message %d was in flight with %s, its lease expired",
+                        lease.getKey(), lease.getValue().worker));
+                expired.remove();
+            }
+        }
+
+        List<Message> messages = this.read(null, count, maxBytes, now);
+        for (Message message : messages) {
+            this.leases.put(message.getId(), new Lease(worker, now + leaseMillis));
+        }
+        return messages;
+    }
+
+    public synchronized void release(String worker, long[] ids) {
+        Log.v(TAG, "release, worker: " + worker);
+        if (ids == null)
+            return;
+
+        for (long id : ids) {
+            Lease lease = this.leases.get(id);
+            if (lease != null && lease.worker.equals(worker)) {
+                this.leases.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Reads the live messages after the position in queue order, skipping the ones leased past
+     * {@code now}: the messages above the normal priority first, from the index, then a scan of
+     * the log for the normal ones, then the ones below from the index.
+     */
+    private List<Message> read(QueuePosition position, int count, long maxBytes, long now) throws URISyntaxException {
+        Batch batch = new Batch(count, maxBytes, now);
+        List<Map.Entry<Long, Integer>> below = new ArrayList<Map.Entry<Long, Integer>>();
+        for (Map.Entry<Long, Integer> entry : this.prioritized(position)) {
+            if (entry.getValue() < Message.PRIORITY_NORMAL) {
+                below.add(entry);
+            } else if (!batch.add(entry.getKey())) {
+                return batch.messages;
+            }
+        }
+
+        long from = position == null || Message.PRIORITY_NORMAL < position.getPriority() ? 0
+                : Message.PRIORITY_NORMAL == position.getPriority() ? position.getId() + 1
+                : position.getMaxSeenId() + 1;
+        Long first = this.segments.floorKey(from);
+        for (Segment segment : this.segments.tailMap(first != null ? first : from).values()) {
+            for (long id = Math.max(from, segment.firstId); id < segment.nextId(); id++) {
+                if (!this.priorities.isEmpty() && this.priorities.containsKey(id)) {
+                    continue;
+                }
+                if (!batch.add(id)) {
+                    return batch.messages;
+                }
+            }
+        }
+
+        for (Map.Entry<Long, Integer> entry : below) {
+            if (!batch.add(entry.getKey())) {
+                break;
+            }
+        }
+        return batch.messages;
+    }
+
+    /**
+     * Returns the indexed messages away from the normal priority that come after the position,
+     * by descending priority, then by id.
+     */
+    private List<Map.Entry<Long, Integer>> prioritized(QueuePosition position) {
+        if (this.priorities.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<Map.Entry<Long, Integer>> entries = new ArrayList<Map.Entry<Long, Integer>>();
+        for (Map.Entry<Long, Integer> entry : this.priorities.entrySet()) {
+            int priority = entry.getValue();
+            long id = entry.getKey();
+            if (position == null || priority < position.getPriority()
+                    || (priority == position.getPriority() && id > position.getId())
+                    || (priority > position.getPriority() && id > position.getMaxSeenId())) {
+                entries.add(entry);
+            }
+        }
+        // stable, so ids stay ascending within a priority
+        Collections.sort(entries, new Comparator<Map.Entry<Long, Integer>>() {
+            @Override
+            public int compare(Map.Entry<Long, Integer> a, Map.Entry<Long, Integer> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        return entries;
+    }
+
+    private boolean isLeased(long id, long now) {
+        if (this.leases.isEmpty()) {
+            return false;
+        }
+        Lease lease = this.leases.get(id);
+        return lease != null && lease.until > now;
+    }
+
+    public void delete(Message message) {
+        Log.v(TAG, "delete");
+        if (message == null || message.getId() == null)
+            return;
+
+        this.deleteAll(new long[]{message.getId()});
+    }
+
+    /**
+     * Acknowledges the messages; ids that are no longer queued are ignored.
+     */
+    public synchronized void deleteAll(long[] ids) {
+        Log.v(TAG, "deleteAll");
+        if (ids == null || ids.length == 0)
+            return;
+
+        long[] acked = new long[ids.length];
+        int count = 0;
+        for (long id : ids) {
+            Segment segment = this.segmentOf(id);
+            if (segment != null && this.ack(segment, id)) {
+                acked[count++] = id;
+            }
+            this.leases.remove(id);
+        }
+        this.persistAcks(acked, count);
+        this.dropAcknowledged();
+        Log.v(TAG, String.format("deleteAll, requested: %d, deleted: %d", ids.length, count));
+    }
+
+    /**
+     * Acknowledges every message that expired at or before {@code now}. Expiry times are read
+     * in place, without decoding the messages.
+     */
+    public synchronized int deleteExpired(long now) {
+        Log.v(TAG, "deleteExpired, now: " + now);
+
+        long[] expired = new long[16];
+        int count = 0;
+        for (Segment segment : this.segments.values()) {
+            for (long id = segment.firstId; id < segment.nextId(); id++) {
+                if (!segment.isAcked(id) && segment.expiresAt(id) <= now && this.ack(segment, id)) {
+                    if (count == expired.length) {
+                        expired = Arrays.copyOf(expired, count * 2);
+                    }
+                    expired[count++] = id;
+                }
+            }
+        }
+        this.persistAcks(expired, count);
+        this.dropAcknowledged();
+        Log.v(TAG, "deleteExpired, deleted: " + count);
+        return count;
+    }
+
+    /**
+     * Updates the tries left in place, in the mapped record.
+     */
+    public synchronized void decrementMessageTries(Message message) {
+        Log.v(TAG, "decrementTries");
+        int numberOfTriesLeft = message.getNumberOfTries() - 1;
+        message.setNumberOfTries(numberOfTriesLeft);
+
+        Segment segment = this.segmentOf(message.getId());
+        if (segment != null && !segment.isAcked(message.getId())) {
+            segment.setTriesLeft(message.getId(), numberOfTriesLeft);
+        }
+    }
+
+    public synchronized void updateCredentials(String username, String password) {
+        Log.v(TAG, "updateCredentials, username: " + username);
+        try {
+            this.credentials.rotate(username, password);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot save the password of " + username, e);
+        }
+    }
+
+    /**
+     * Credentials are never deleted, so an id taken here is still valid when its record is appended.
+     */
+    private synchronized long[] credentialIds(List<Message> messages) {
+        long[] ids = new long[messages.size()];
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = this.credentials.idOf(messages.get(i).getUsername(), messages.get(i).getPassword());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot save the credentials in " + this.directory, e);
+        }
+        return ids;
+    }
+
+    /**
+     * Drops the oldest segments until their files fit in {@code limit} minus the cleaning margin.
+     */
+    public synchronized void shrinkDb(long limit) {
+        Log.v(TAG, "shrinkDb");
+        limit -= SIZE_DIFFERENCE_TO_START_CLEANING;
+        long queuedBytes = this.getQueuedBytes();
+        if (queuedBytes <= limit) {
+            Log.v(TAG, "shrinkDb, queuedBytes <= limit, no SHRINK");
+            return;
+        }
+
+        this.evict(queuedBytes - limit);
+        Log.v(TAG, String.format("shrinkDb, queuedBytes: %d, limit: %d", this.getQueuedBytes(), limit));
+    }
+
+    /**
+     * Drops whole segments, oldest first, until at least {@code bytes} of segment files are gone.
+     */
+    private void evict(long bytes) {
+        long evicted = 0;
+        while (evicted < bytes && !this.segments.isEmpty()) {
+            Segment oldest = this.segments.firstEntry().getValue();
+            evicted += oldest.capacity();
+            Log.w(TAG, String.format("evict, dropping %d messages of segment %s", oldest.live(), oldest.file.getName()));
+            this.drop(oldest);
+        }
+    }
+
+    /**
+     * Segment files are deleted as soon as they empty, so compaction only has to rewrite the
+     * acknowledgement index once enough of it refers to segments that are gone.
+     */
+    public synchronized void compact() {
+        Log.v(TAG, "compact");
+        if (this.obsoleteAcks > 0 && this.obsoleteAcks >= this.acks.entries() / 2) {
+            this.rewriteAcks();
+        }
+    }
+
+    /**
+     * A segment file keeps its preallocated size on disk while any of its messages is queued, so
+     * the queue takes the size of its segment files, not that of the payloads.
+     */
+    public synchronized long getQueuedBytes() {
+        long bytes = 0;
+        for (Segment segment : this.segments.values()) {
+            bytes += segment.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * The payload bytes of the queued messages.
+     */
+    synchronized long getLiveBytes() {
+        long bytes = 0;
+        for (Segment segment : this.segments.values()) {
+            bytes += segment.liveBytes();
+        }
+        return bytes;
+    }
+
+    public synchronized long getAvailableMessagesCount(String url) {
+        Long count = this.urlCounts.get(url);
+        return count != null ? count : 0;
+    }
+
+    public synchronized long getAvailableMessagesCount() {
+        long count = 0;
+        for (Segment segment : this.segments.values()) {
+            count += segment.live();
+        }
+        return count;
+    }
+
+    public void close() {
+        synchronized (LogMessageStore.class) {
+            if (this == instance) {
+                referenceCount--;
+                Log.v(TAG, "close, references: " + referenceCount);
+                if (referenceCount > 0) {
+                    return;
+                }
+
+                instance = null;
+                referenceCount = 0;
+            }
+
+            synchronized (this) {
+                this.acks.close();
+                for (Segment segment : this.segments.values()) {
+                    segment.close();
+                }
+                this.segments.clear();
+            }
+        }
+    }
+
+    private Segment tail() {
+        return this.segments.isEmpty() ? null : this.segments.lastEntry().getValue();
+    }
+
+    private Segment segmentOf(long id) {
+        Map.Entry<Long, Segment> entry = this.segments.floorEntry(id);
+        return entry != null && entry.getValue().contains(id) ? entry.getValue() : null;
+    }
+
+    /**
+     * Deletes the segments whose messages are all acknowledged, except the tail,
+     * which is still being appended to.
+     */
+    private void dropAcknowledged() {
+        Segment tail = this.tail();
+        for (Segment segment : new ArrayList<Segment>(this.segments.values())) {
+            if (segment.live() == 0 && segment != tail) {
+                this.drop(segment);
+            }
+        }
+    }
+
+    private void drop(Segment segment) {
+        if (segment.live() > 0) {
+            for (long id = segment.firstId; id < segment.nextId(); id++) {
+                if (!segment.isAcked(id)) {
+                    this.count(segment.url(id), -1);
+                }
+            }
+        }
+        this.segments.remove(segment.firstId);
+        this.priorities.subMap(segment.firstId, segment.nextId()).clear();
+        forget(this.idempotencyKeys.values(), segment);
+        forget(this.coalesceKeys.values(), segment);
+        this.obsoleteAcks += segment.count() - segment.live();
+        if (!segment.delete()) {
+            Log.w(TAG, "drop, cannot delete " + segment.file.getName());
+        }
+    }
+
+    private static void forget(Collection<Long> ids, Segment segment) {
+        Iterator<Long> iterator = ids.iterator();
+        while (iterator.hasNext()) {
+            if (segment.contains(iterator.next())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void persistAcks(long[] ids, int count) {
+        try {
+            this.acks.append(ids, count);
+        } catch (IOException e) {
+            Log.w(TAG, "persistAcks, messages may be sent again after a restart", e);
+        }
+    }
+
+    private void rewriteAcks() {
+        List<long[]> live = new ArrayList<long[]>(this.segments.size());
+        for (Segment segment : this.segments.values()) {
+            live.add(segment.ackedIds());
+        }
+
+        try {
+            this.acks.rewrite(live);
+            this.obsoleteAcks = 0;
+        } catch (IOException e) {
+            Log.w(TAG, "rewriteAcks", e);
+        }
+    }
+
+    /**
+     * A batch being read: takes messages until it holds {@code count} of them or the next one
+     * would take it past {@code maxBytes}.
+     */
+    private final class Batch {
+        final List<Message> messages = new ArrayList<Message>();
+        final int count;
+        final long maxBytes;
+        final long now;
+        long bytes = 0;
+
+        Batch(int count, long maxBytes, long now) {
+            this.count = count;
+            this.maxBytes = maxBytes;
+            this.now = now;
+        }
+
+        /**
+         * Adds the message unless it is acknowledged or leased; returns false once the batch is full.
+         */
+        boolean add(long id) throws URISyntaxException {
+            if (this.messages.size() == this.count) {
+                return false;
+            }
+            Segment segment = LogMessageStore.this.segmentOf(id);
+            if (segment == null || segment.isAcked(id) || LogMessageStore.this.isLeased(id, this.now)) {
+                return true;
+            }
+
+            this.bytes += segment.size(id);
+            if (!this.messages.isEmpty() && this.bytes > this.maxBytes) {
+                return false;
+            }
+            Message message = Records.decode(id, segment.payload(id), segment.triesLeft(id),
+                    LogMessageStore.this.credentials);
+            message.setStoredSize(segment.size(id));
+            this.messages.add(message);
+            return true;
+        }
+    }
+
+    private static final class Lease {
+        final String worker;
+        final long until;
+
+        Lease(String worker, long until) {
+            this.worker = worker;
+            this.until = until;
+        }
+    }
+}
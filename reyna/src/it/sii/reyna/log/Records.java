@@ -0,0 +1,161 @@
+package it.sii.reyna.log;
+
+import it.sii.reyna.system.BodyCodec;
+import it.sii.reyna.system.Message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Payload of a log record. The expiry time comes first, so that {@link Segment#expiresAt} can
+ * read it in place; the rest follows in a fixed order:
+ * <pre>
+ *   long expires at | int priority | byte codec | url | long credential id | idempotency key |
+ *   coalesce key | headers | body
+ * </pre>
+ * The username and password are kept once in {@link Credentials}, under the credential id.
+ * Strings are modified UTF-8 with a presence flag, byte arrays have a length prefix (-1 for null).
+ * Bodies use the {@link BodyCodec} markers; large bodies stay inline, in a segment of their own.
+ */
+final class Records {
+
+    // stands for a message that never expires
+    private static final long NEVER = Long.MAX_VALUE;
+
+    private static final String CHARSET = "UTF-8";
+
+    // the expiry time comes before the priority
+    static final int PRIORITY_OFFSET = 8;
+
+    // expires at, priority and codec come before the url
+    static final int URL_OFFSET = 8 + 4 + 1;
+
+    private Records() {
+    }
+
+    static byte[] encode(Message message, long credentialId, boolean bodyCompression) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(message.getExpiresAt() != null ? message.getExpiresAt() : NEVER);
+            out.writeInt(message.getPriority());
+
+            int codec;
+            byte[] body;
+            if (message.isBinary()) {
+                codec = BodyCodec.BINARY;
+                body = message.getBinaryBody();
+            } else {
+                byte[] deflated = bodyCompression ? BodyCodec.deflate(message.getBody()) : null;
+                codec = deflated != null ? BodyCodec.DEFLATE : BodyCodec.PLAIN;
+                body = deflated != null ? deflated
+                        : message.getBody() != null ? message.getBody().getBytes(CHARSET) : null;
+            }
+            out.writeByte(codec);
+
+            out.writeUTF(message.getUrl());
+            out.writeLong(credentialId);
+            writeString(out, message.getIdempotencyKey());
+            writeString(out, message.getCoalesceKey());
+            writeBytes(out, message.getEncodedHeaders());
+            writeBytes(out, body);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Message decode(long id, byte[] payload, int triesLeft, Credentials credentials) throws URISyntaxException {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            long expiresAt = in.readLong();
+            int priority = in.readInt();
+            int codec = in.readByte();
+            URI uri = new URI(in.readUTF());
+            long credentialId = in.readLong();
+            Credentials.Credential credential = credentials.get(credentialId);
+            String idempotencyKey = readString(in);
+            String coalesceKey = readString(in);
+            byte[] headers = readBytes(in);
+            byte[] body = readBytes(in);
+
+            Message message;
+            switch (codec) {
+                case BodyCodec.BINARY:
+                    message = Message.binary(id, uri, body, credential.username, credential.password, null);
+                    break;
+                case BodyCodec.DEFLATE:
+                    message = new Message(id, uri, BodyCodec.inflate(body), credential.username,
+                            credential.password, null);
+                    break;
+                default:
+                    message = new Message(id, uri, body != null ? new String(body, CHARSET) : null,
+                            credential.username, credential.password, null);
+                    break;
+            }
+
+            message.setCredentialId(credentialId);
+            message.setNumberOfTries(triesLeft == Segment.NO_TRIES ? null : triesLeft);
+            message.setEncodedHeaders(headers);
+            message.setPriority(priority);
+            message.setExpiresAt(expiresAt == NEVER ? null : expiresAt);
+            message.setIdempotencyKey(idempotencyKey);
+            message.setCoalesceKey(coalesceKey);
+            return message;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed record " + id, e);
+        }
+    }
+
+    /**
+     * Returns the idempotency key and the coalesce key of the record, either of which may be
+     * null, without decoding the headers and the body.
+     */
+    static String[] keys(byte[] payload) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            in.skipBytes(URL_OFFSET);
+            in.readUTF();
+            in.readLong();
+            return new String[]{readString(in), readString(in)};
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed record", e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+}
@@ -0,0 +1,302 @@
+package it.sii.reyna.log;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * One append-only, memory-mapped file of the log, holding the messages with consecutive ids
+ * from {@link #firstId}. The file is allocated at its full capacity up front and filled with
+ * records of the form:
+ * <pre>
+ *   int length | int crc32 of the payload | int tries left | payload
+ * </pre>
+ * A zero length marks the end of the records. The length is written last and the payload is
+ * checksummed, so a record torn by a crash ends the segment when it is opened again. Tries left
+ * are updated in place and are therefore not covered by the checksum.
+ * <p>
+ * Acknowledged records are only flagged in memory (see {@link AckIndex}); the file goes away as a
+ * whole once all of them are. Not thread-safe: {@link LogMessageStore} serializes all access.
+ */
+final class Segment {
+
+    static final int RECORD_HEADER_BYTES = 12;
+
+    static final String SUFFIX = ".log";
+
+    // stands for a null tries left, which a message never reaches by decrementing
+    static final int NO_TRIES = Integer.MIN_VALUE;
+
+    final File file;
+
+    final long firstId;
+
+    private final RandomAccessFile access;
+
+    private final MappedByteBuffer buffer;
+
+    private int[] offsets = new int[64];
+
+    private int count = 0;
+
+    private int end = 0;
+
+    private final BitSet acked = new BitSet();
+
+    private int live = 0;
+
+    private long liveBytes = 0;
+
+    private Segment(File file, long firstId, RandomAccessFile access, MappedByteBuffer buffer) {
+        this.file = file;
+        this.firstId = firstId;
+        this.access = access;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates an empty segment of {@code capacity} bytes for the messages from {@code firstId}.
+     */
+    static Segment create(File directory, long firstId, int capacity) throws IOException {
+        File file = new File(directory, name(firstId));
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            access.setLength(capacity);
+            MappedByteBuffer buffer = access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            return new Segment(file, firstId, access, buffer);
+        } catch (IOException e) {
+            access.close();
+            file.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Maps an existing segment and reads its records up to the first empty or torn one.
+     * Everything after it is cleared, so that new records cannot run into stale bytes.
+     */
+    static Segment open(File file) throws IOException {
+        long firstId = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer buffer = access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, access.length());
+            Segment segment = new Segment(file, firstId, access, buffer);
+            segment.scan();
+            return segment;
+        } catch (IOException e) {
+            access.close();
+            throw e;
+        } catch (RuntimeException e) {
+            access.close();
+            throw new IOException("Unreadable segment " + file, e);
+        }
+    }
+
+    static String name(long firstId) {
+        return String.format("%020d%s", firstId, SUFFIX);
+    }
+
+    static boolean isSegment(File file) {
+        return file.getName().matches("[0-9]{20}\\" + SUFFIX);
+    }
+
+    private void scan() {
+        int capacity = this.buffer.capacity();
+        while (this.end + RECORD_HEADER_BYTES <= capacity) {
+            int length = this.buffer.getInt(this.end);
+            if (length <= 0 || length > capacity - this.end - RECORD_HEADER_BYTES
+                    || this.buffer.getInt(this.end + 4) != crc(this.read(this.end, length))) {
+                break;
+            }
+            this.index(this.end, length);
+        }
+
+        for (int position = this.end; position < capacity; position++) {
+            if (this.buffer.get(position) != 0) {
+                this.buffer.put(position, (byte) 0);
+            }
+        }
+    }
+
+    boolean fits(int payloadLength) {
+        return this.end + RECORD_HEADER_BYTES + (long) payloadLength <= this.buffer.capacity();
+    }
+
+    /**
+     * Appends the record and returns the id of its message. Call {@link #force} to make it durable.
+     */
+    long append(byte[] payload, int triesLeft) {
+        if (!this.fits(payload.length)) {
+            throw new IllegalStateException("Segment " + this.file.getName() + " is full");
+        }
+
+        int offset = this.end;
+        ByteBuffer view = this.buffer.duplicate();
+        view.position(offset + RECORD_HEADER_BYTES);
+        view.put(payload);
+        this.buffer.putInt(offset + 4, crc(payload));
+        this.buffer.putInt(offset + 8, triesLeft);
+        // last, so that the record only exists once it is complete
+        this.buffer.putInt(offset, payload.length);
+
+        this.index(offset, payload.length);
+        return this.firstId + this.count - 1;
+    }
+
+    private void index(int offset, int length) {
+        if (this.count == this.offsets.length) {
+            this.offsets = Arrays.copyOf(this.offsets, this.count * 2);
+        }
+        this.offsets[this.count++] = offset;
+        this.end = offset + RECORD_HEADER_BYTES + length;
+        this.live++;
+        this.liveBytes += length;
+    }
+
+    void force() {
+        this.buffer.force();
+    }
+
+    long nextId() {
+        return this.firstId + this.count;
+    }
+
+    boolean contains(long id) {
+        return id >= this.firstId && id < this.nextId();
+    }
+
+    byte[] payload(long id) {
+        int offset = this.offset(id);
+        return this.read(offset, this.buffer.getInt(offset));
+    }
+
+    /**
+     * Bytes the record counts for in the queue size: the length of its payload.
+     */
+    int size(long id) {
+        return this.buffer.getInt(this.offset(id));
+    }
+
+    int triesLeft(long id) {
+        return this.buffer.getInt(this.offset(id) + 8);
+    }
+
+    void setTriesLeft(long id, int triesLeft) {
+        this.buffer.putInt(this.offset(id) + 8, triesLeft);
+    }
+
+    /**
+     * Expiry time of the message, read from the start of the payload without decoding it.
+     */
+    long expiresAt(long id) {
+        return this.buffer.getLong(this.offset(id) + RECORD_HEADER_BYTES);
+    }
+
+    /**
+     * Priority of the message, read in place after its expiry time.
+     */
+    int priority(long id) {
+        return this.buffer.getInt(this.offset(id) + RECORD_HEADER_BYTES + Records.PRIORITY_OFFSET);
+    }
+
+    /**
+     * Url of the message, read in place after the fixed fields of the payload.
+     */
+    String url(long id) {
+        int offset = this.offset(id) + RECORD_HEADER_BYTES + Records.URL_OFFSET;
+        byte[] utf = new byte[2 + (this.buffer.getShort(offset) & 0xffff)];
+        ByteBuffer view = this.buffer.duplicate();
+        view.position(offset);
+        view.get(utf);
+        try {
+            return new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed record " + id, e);
+        }
+    }
+
+    boolean isAcked(long id) {
+        return this.acked.get((int) (id - this.firstId));
+    }
+
+    /**
+     * Flags the message as acknowledged; returns false if it already was.
+     */
+    boolean ack(long id) {
+        int index = (int) (id - this.firstId);
+        if (this.acked.get(index)) {
+            return false;
+        }
+
+        this.acked.set(index);
+        this.live--;
+        this.liveBytes -= this.size(id);
+        return true;
+    }
+
+    long[] ackedIds() {
+        long[] ids = new long[this.count - this.live];
+        int next = 0;
+        for (int index = this.acked.nextSetBit(0); index >= 0; index = this.acked.nextSetBit(index + 1)) {
+            ids[next++] = this.firstId + index;
+        }
+        return ids;
+    }
+
+    int count() {
+        return this.count;
+    }
+
+    int live() {
+        return this.live;
+    }
+
+    long liveBytes() {
+        return this.liveBytes;
+    }
+
+    int capacity() {
+        return this.buffer.capacity();
+    }
+
+    void close() {
+        try {
+            this.access.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Closes and removes the file. The mapping itself is released when the buffer is collected.
+     */
+    boolean delete() {
+        this.close();
+        return this.file.delete();
+    }
+
+    private int offset(long id) {
+        return this.offsets[(int) (id - this.firstId)];
+    }
+
+    private byte[] read(int offset, int length) {
+        byte[] payload = new byte[length];
+        ByteBuffer view = this.buffer.duplicate();
+        view.position(offset + RECORD_HEADER_BYTES);
+        view.get(payload);
+        return payload;
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
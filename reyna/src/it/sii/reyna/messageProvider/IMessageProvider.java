@@ -3,12 +3,25 @@ package it.sii.reyna.messageProvider;
 import it.sii.reyna.system.Message;
 
 import java.net.URISyntaxException;
+import java.util.List;
 
 public interface IMessageProvider {
     Message getNext() throws URISyntaxException;
 
+    List<Message> getNextBatch(int count) throws URISyntaxException;
+
+    MessageStream stream(int readAheadCount, long readAheadBytes);
+
+    List<Message> claim(String worker, int count, long maxBytes, long leaseMillis) throws URISyntaxException;
+
+    void release(String worker, List<Message> messages);
+
     void delete(Message message);
 
+    void deleteAll(List<Message> messages);
+
+    void deleteExpired();
+
     void close();
 
     boolean canSend();
@@ -1,19 +1,23 @@
 package it.sii.reyna.messageProvider;
 
 import android.util.Log;
-import it.sii.reyna.system.Header;
 import it.sii.reyna.system.Message;
-import it.sii.reyna.Repository;
+import it.sii.reyna.IMessageStore;
 
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
 
 public class MessageProvider implements IMessageProvider {
 
     private static final String TAG = "MessageProvider";
 
-    protected Repository repository;
+    protected IMessageStore repository;
 
-    public MessageProvider(Repository repository) {
+    /**
+     * The provider takes over one reference to the repository and releases it in {@link #close()}.
+     */
+    public MessageProvider(IMessageStore repository) {
         Log.v(MessageProvider.TAG, "MessageProvider");
 
         this.repository = repository;
@@ -31,12 +35,68 @@ public class MessageProvider implements IMessageProvider {
         return message;
     }
 
+    public List<Message> getNextBatch(int count) throws URISyntaxException {
+        Log.v(MessageProvider.TAG, "getNextBatch");
+
+        return this.repository.getNextBatch(count);
+    }
+
+    public MessageStream stream(int readAheadCount, long readAheadBytes) {
+        Log.v(MessageProvider.TAG, "stream");
+
+        return new MessageStream(this.repository, readAheadCount, readAheadBytes);
+    }
+
+    /**
+     * Leases the next messages to {@code worker}, for parallel senders; see {@link IMessageStore#claim}.
+     */
+    public List<Message> claim(String worker, int count, long maxBytes, long leaseMillis) throws URISyntaxException {
+        Log.v(MessageProvider.TAG, "claim");
+
+        return this.repository.claim(worker, count, maxBytes, System.currentTimeMillis(), leaseMillis);
+    }
+
+    public void release(String worker, List<Message> messages) {
+        Log.v(MessageProvider.TAG, "release");
+        if (messages == null || messages.isEmpty()) {
+            return;
+        }
+
+        this.repository.release(worker, ids(messages));
+    }
+
     public void delete(Message message) {
         Log.v(MessageProvider.TAG, "delete");
 
         this.repository.delete(message);
     }
 
+    public void deleteAll(List<Message> messages) {
+        Log.v(MessageProvider.TAG, "deleteAll");
+        if (messages == null || messages.isEmpty()) {
+            return;
+        }
+
+        this.repository.deleteAll(ids(messages));
+    }
+
+    private static long[] ids(List<Message> messages) {
+        long[] ids = new long[messages.size()];
+        int count = 0;
+        for (Message message : messages) {
+            if (message.getId() != null) {
+                ids[count++] = message.getId();
+            }
+        }
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    public void deleteExpired() {
+        Log.v(MessageProvider.TAG, "deleteExpired");
+
+        this.repository.deleteExpired(System.currentTimeMillis());
+    }
+
     @Override
     public void close() {
         Log.v(MessageProvider.TAG, "close");
@@ -63,10 +123,4 @@ public class MessageProvider implements IMessageProvider {
             }
         }
     }
-
-    private void addReynaSpecificHeaders(Message message) {
-        Log.v(MessageProvider.TAG, "addReynaSpecificHeaders");
-        Header header = new Header("reyna-id", message.getId().toString());
-        message.addHeader(header);
-    }
 }
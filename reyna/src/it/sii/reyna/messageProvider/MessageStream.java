@@ -0,0 +1,132 @@
+package it.sii.reyna.messageProvider;
+
+import android.util.Log;
+import it.sii.reyna.IMessageStore;
+import it.sii.reyna.QueuePosition;
+import it.sii.reyna.system.Message;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Iterates the queue in queue order, reading ahead a window of messages bounded both by count
+ * and by payload bytes. The next window is fetched on a background thread as soon as half of
+ * the current one has been consumed, so the caller does not wait on the database between sends.
+ * Messages queued meanwhile with a higher priority than the current one are returned with the
+ * next window. Messages are not removed by the stream; acknowledge them through the provider.
+ */
+public class MessageStream implements Iterator<Message> {
+
+    private static final String TAG = "MessageStream";
+
+    private final IMessageStore repository;
+
+    private final int readAheadCount;
+
+    private final long readAheadBytes;
+
+    private final ArrayDeque<Message> window = new ArrayDeque<Message>();
+
+    private final ExecutorService executor;
+
+    private Future<List<Message>> pending = null;
+
+    private QueuePosition position = null;
+
+    private boolean exhausted = false;
+
+    public MessageStream(IMessageStore repository, int readAheadCount, long readAheadBytes) {
+        Log.v(TAG, String.format("MessageStream, readAheadCount: %d, readAheadBytes: %d", readAheadCount, readAheadBytes));
+
+        this.repository = repository;
+        this.readAheadCount = Math.max(readAheadCount, 1);
+        this.readAheadBytes = Math.max(readAheadBytes, 1);
+        this.executor = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (this.window.isEmpty() && !this.exhausted) {
+            this.fill(this.pending != null ? this.await() : this.fetch());
+        }
+        return !this.window.isEmpty();
+    }
+
+    @Override
+    public Message next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Message message = this.window.poll();
+        if (this.pending == null && !this.exhausted && this.window.size() <= this.readAheadCount / 2) {
+            this.prefetch();
+        }
+        return message;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+        Log.v(TAG, "close");
+        if (this.pending != null) {
+            this.pending.cancel(false);
+            this.pending = null;
+        }
+        this.executor.shutdown();
+        this.window.clear();
+        this.exhausted = true;
+    }
+
+    private void prefetch() {
+        final QueuePosition after = this.position;
+        this.pending = this.executor.submit(new Callable<List<Message>>() {
+            @Override
+            public List<Message> call() throws Exception {
+                return MessageStream.this.repository.getNextBatchAfter(after, readAheadCount, readAheadBytes);
+            }
+        });
+    }
+
+    private List<Message> await() {
+        try {
+            return this.pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading ahead", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cannot read ahead", e.getCause());
+        } finally {
+            this.pending = null;
+        }
+    }
+
+    private List<Message> fetch() {
+        try {
+            return this.repository.getNextBatchAfter(this.position, this.readAheadCount, this.readAheadBytes);
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot read from repository", e);
+        }
+    }
+
+    private void fill(List<Message> messages) {
+        Log.v(TAG, "fill, messages: " + messages.size());
+        if (messages.isEmpty()) {
+            this.exhausted = true;
+            return;
+        }
+
+        this.window.addAll(messages);
+        this.position = QueuePosition.after(this.position, messages);
+    }
+}
@@ -9,10 +9,22 @@ import it.sii.reyna.Dispatcher.ResultStatus;
 
 import it.sii.reyna.messageProvider.IMessageProvider;
 import it.sii.reyna.messageProvider.MessageProvider;
+import it.sii.reyna.messageProvider.MessageStream;
 
-import it.sii.reyna.Repository;
+import it.sii.reyna.IMessageStore;
+import it.sii.reyna.MessageStores;
 import it.sii.reyna.system.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drains the queue, sending one message at a time. Delivery is at least once: sent messages are
+ * acknowledged in batches of up to {@value #BATCH_SIZE}, or after at most
+ * {@value #ACKNOWLEDGE_MILLISECONDS}ms, whichever comes first, so a crash or kill can post again
+ * the messages sent since the last acknowledgement. Give messages an idempotency key when the
+ * server must see them only once.
+ */
 public class ForwardService extends WakefulService {
 
     private static String TAG = "ForwardService";
@@ -23,9 +35,17 @@ public class ForwardService extends WakefulService {
 
     protected static final long TEMPORARY_ERROR_MILLISECONDS = 1 * 60 * 1000; // 1 minute
 
+    protected static final int BATCH_SIZE = 20;
+
+    protected static final long ACKNOWLEDGE_MILLISECONDS = 2000; // 2 seconds
+
+    protected static final int READ_AHEAD_COUNT = 20;
+
+    protected static final long READ_AHEAD_BYTES = 512 * 1024; // 512Kb
+
     protected PeriodicBackoutCheck periodicBackoutCheck;
 
-    protected Repository repository = null;
+    protected IMessageStore repository = null;
 
     public ForwardService() {
         super(ForwardService.class.getName());
@@ -33,7 +53,23 @@ public class ForwardService extends WakefulService {
         Log.v(TAG, "ForwardService()");
 
         this.periodicBackoutCheck = new PeriodicBackoutCheck(this);
-        this.repository = new Repository(this);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        Log.v(TAG, "onCreate");
+        // keeps the shared database open for as long as the service is alive
+        this.repository = MessageStores.open(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.v(TAG, "onDestroy");
+        this.repository.close();
+
+        super.onDestroy();
     }
 
     public static void start(Context context) {
@@ -50,6 +86,7 @@ public class ForwardService extends WakefulService {
         Log.v(TAG, "onHandleIntent");
 
         IMessageProvider messageProvider = this.getMessageProvider();
+        Dispatcher.Clients clients = new Dispatcher.Clients();
 
         try {
 
@@ -69,41 +106,81 @@ public class ForwardService extends WakefulService {
                 return;
             }
 
-            Message message = messageProvider.getNext();
-            while(message != null) {
-                Thread.sleep(SLEEP_MILLISECONDS);
-
-                Log.v(TAG, "ForwardService: processing message " + message.getId());
-
-                ResultStatus resultStatus = Dispatcher.sendMessage(this, message).getStatus();
-
-                Log.i(TAG, "ForwardService: send message result: " + resultStatus.toString());
-
-                if(resultStatus == ResultStatus.TEMPORARY_ERROR) {
-                    Log.i(TAG, "ForwardService: temporary error, backing off...");
-                    messageProvider.recordTemporaryError(message);
-                    this.periodicBackoutCheck.record(ForwardService.PERIODIC_BACKOUT_TEMPORARY_ERROR);
-                    return;
-                }
-
-                if(resultStatus == ResultStatus.BLACKOUT || resultStatus == ResultStatus.NOTCONNECTED) {
-                    return;
+            // never spend bandwidth on messages that are already stale
+            messageProvider.deleteExpired();
+
+            List<Message> delivered = new ArrayList<Message>();
+            long firstDeliveredAt = 0;
+            MessageStream messages = messageProvider.stream(READ_AHEAD_COUNT, READ_AHEAD_BYTES);
+            try {
+                while (messages.hasNext()) {
+                    Message message = messages.next();
+                    if (message.isExpired(System.currentTimeMillis())) {
+                        Log.v(TAG, "ForwardService: dropping expired message " + message.getId());
+                        if (delivered.isEmpty()) {
+                            firstDeliveredAt = System.currentTimeMillis();
+                        }
+                        delivered.add(message);
+                        continue;
+                    }
+
+                    if (!message.isHighPriority()) {
+                        Thread.sleep(SLEEP_MILLISECONDS);
+                    }
+
+                    Log.v(TAG, "ForwardService: processing message " + message.getId());
+
+                    ResultStatus resultStatus = Dispatcher.sendMessage(this, message, clients).getStatus();
+
+                    Log.i(TAG, "ForwardService: send message result: " + resultStatus.toString());
+
+                    if (resultStatus == ResultStatus.TEMPORARY_ERROR) {
+                        Log.i(TAG, "ForwardService: temporary error, backing off...");
+                        messageProvider.recordTemporaryError(message);
+                        this.periodicBackoutCheck.record(ForwardService.PERIODIC_BACKOUT_TEMPORARY_ERROR);
+                        return;
+                    }
+
+                    if (resultStatus == ResultStatus.BLACKOUT || resultStatus == ResultStatus.NOTCONNECTED) {
+                        return;
+                    }
+
+                    // OK or Permanent Error
+                    long now = System.currentTimeMillis();
+                    if (delivered.isEmpty()) {
+                        firstDeliveredAt = now;
+                    }
+                    delivered.add(message);
+                    if (delivered.size() >= BATCH_SIZE || now - firstDeliveredAt >= ACKNOWLEDGE_MILLISECONDS) {
+                        messageProvider.deleteAll(delivered);
+                        delivered.clear();
+                    }
                 }
-
-                // OK or Permanent Error
-                messageProvider.delete(message);
-                message = messageProvider.getNext();
+            } finally {
+                messages.close();
+                // acknowledge whatever was sent before an early return or failure
+                messageProvider.deleteAll(delivered);
             }
 
         } catch(Exception e) {
             Log.e(TAG, "onHandleIntent", e);
         } finally {
+            clients.release();
             messageProvider.close();
+            this.compact();
+        }
+    }
+
+    private void compact() {
+        try {
+            this.repository.compact();
+        } catch (Exception e) {
+            Log.w(TAG, "compact", e);
         }
     }
 
     protected IMessageProvider getMessageProvider() {
         Log.v(TAG, "getMessageProvider MessageProvider");
-        return new MessageProvider(repository);
+        return new MessageProvider(MessageStores.open(this));
     }
 }
@@ -6,12 +6,21 @@ import android.content.Intent;
 import android.support.v4.content.WakefulBroadcastReceiver;
 import android.util.Log;
 import it.sii.reyna.blackout.TimeRange;
+import it.sii.reyna.system.BodyCodec;
+import it.sii.reyna.system.BodyFileStore;
 import it.sii.reyna.system.Message;
 import it.sii.reyna.system.Preferences;
 import it.sii.reyna.system.WakefulService;
+import it.sii.reyna.IMessageStore;
+import it.sii.reyna.MessageStores;
 import it.sii.reyna.Repository;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class StoreService extends WakefulService {
     private static String TAG = "StoreService";
@@ -20,29 +29,110 @@ public class StoreService extends WakefulService {
 
     private static final String MESSAGE = "MESSAGE";
 
+    private static final String SPILL_DIRECTORY = "reyna_spill";
+
+    // spill files older than this belong to store requests that were lost
+    private static final long SPILL_MAX_AGE_MILLISECONDS = 24 * 60 * 60 * 1000;
+
+    protected static final int WRITE_BUFFER_SIZE = 50;
+
+    protected static final long WRITE_BUFFER_DELAY_MILLISECONDS = 2000; // 2 seconds
+
+    protected static final int MAX_FLUSH_ATTEMPTS = 3;
+
     private Preferences preferences = null;
 
-    protected Repository repository;
+    protected IMessageStore repository;
+
+    protected final WriteBuffer writeBuffer = new WriteBuffer(WRITE_BUFFER_SIZE, WRITE_BUFFER_DELAY_MILLISECONDS);
+
+    // store intents started but not processed yet
+    private final AtomicInteger pendingIntents = new AtomicInteger();
+
+    // consecutive flushes of the staged batch that failed
+    private int failedFlushes = 0;
 
     public StoreService() {
         super(StoreService.class.getName());
 
         Log.v(TAG, "StoreService()");
-        this.repository = new Repository(this);
         this.preferences = new Preferences(this);
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        Log.v(TAG, "onCreate");
+        this.repository = MessageStores.open(this);
+        spillFiles(this).deleteOlderThan(System.currentTimeMillis() - SPILL_MAX_AGE_MILLISECONDS);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null) {
+            this.pendingIntents.incrementAndGet();
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.v(TAG, "onDestroy");
+        // the last intent flushed the buffer, unless that failed
+        if (this.writeBuffer.size() > 0) {
+            Log.w(TAG, "onDestroy, flushing " + this.writeBuffer.size() + " staged messages");
+            this.flushAll();
+        }
+        this.repository.close();
+
+        super.onDestroy();
+    }
+
+    /**
+     * Enqueues the message. A body over {@link Repository#BODY_FILE_THRESHOLD} bytes is first
+     * written to a spill file, and only its path travels in the Intent, which could not hold it.
+     */
     public static void start(Context context, Message message) {
         Log.v(TAG, "start");
 
         Intent service = new Intent(context, StoreService.class);
-        service.putExtra(StoreService.MESSAGE, message);
+        service.putExtra(StoreService.MESSAGE, spill(context, message));
         ComponentName componentName = WakefulBroadcastReceiver.startWakefulService(context, service);
         if (componentName == null) {
             context.startService(service);
         }
     }
 
+    private static Message spill(Context context, Message message) {
+        if (message.getBodyFile() != null) {
+            return message;
+        }
+
+        long size;
+        if (message.isBinary()) {
+            size = message.getBinaryBody() == null ? 0 : message.getBinaryBody().length;
+        } else {
+            size = BodyCodec.utf8Length(message.getBody());
+        }
+        if (size <= Repository.BODY_FILE_THRESHOLD) {
+            return message;
+        }
+
+        BodyFileStore spillFiles = spillFiles(context);
+        try {
+            String name = message.isBinary() ? spillFiles.write(message.getBinaryBody()) : spillFiles.write(message.getBody());
+            return message.withBodyFile(spillFiles.get(name));
+        } catch (IOException e) {
+            Log.w(TAG, "start, cannot spill the body, sending it in the Intent", e);
+            return message;
+        }
+    }
+
+    private static BodyFileStore spillFiles(Context context) {
+        return new BodyFileStore(context.getDir(SPILL_DIRECTORY, Context.MODE_PRIVATE));
+    }
+
     public static void setCellularDataBlackout(Context context, TimeRange range) {
         Log.v(TAG, "setCellularDataBlackout: " + range);
         new Preferences(context).saveCellularDataBlackout(range);
@@ -87,8 +177,61 @@ public class StoreService extends WakefulService {
         Preferences preferences = new Preferences(context);
         preferences.saveStorageSize(limit);
 
-        Repository repo = new Repository(context);
-        repo.shrinkDb(limit);
+        IMessageStore repo = MessageStores.open(context);
+        try {
+            repo.shrinkDb(limit);
+        } finally {
+            repo.close();
+        }
+    }
+
+    /**
+     * Rotates the password of {@code username} for every queued message, in one update of the
+     * stored credentials. Messages still staged by write buffering keep the password they were
+     * enqueued with.
+     */
+    public static void updateCredentials(Context context, String username, String password) {
+        Log.v(TAG, "updateCredentials, username: " + username);
+        if (username == null) {
+            throw new IllegalArgumentException("username");
+        }
+
+        IMessageStore repo = MessageStores.open(context);
+        try {
+            repo.updateCredentials(username, password);
+        } finally {
+            repo.close();
+        }
+    }
+
+    public static void setBodyCompression(Context context, boolean value) {
+        Log.v(TAG, "setBodyCompression: " + value);
+        new Preferences(context).saveBodyCompression(value);
+    }
+
+    /**
+     * With write buffering on, the default, messages enqueued in a burst are staged in memory and
+     * committed together: every {@value #WRITE_BUFFER_SIZE} messages, once the oldest has waited
+     * {@value #WRITE_BUFFER_DELAY_MILLISECONDS}ms, and as soon as no other store request is
+     * pending. Turn it off to have every message committed before its store request completes;
+     * high priority messages always are.
+     */
+    public static void setWriteBuffering(Context context, boolean value) {
+        Log.v(TAG, "setWriteBuffering: " + value);
+        new Preferences(context).saveWriteBuffering(value);
+    }
+
+    /**
+     * Selects the storage engine, {@link MessageStores#SQLITE} (the default),
+     * {@link MessageStores#SEGMENTED_LOG} or {@link MessageStores#PARTITIONED_SQLITE}, from the next
+     * time the services start. The queued messages are moved to the new engine when it is first opened.
+     */
+    public static void setStorageEngine(Context context, int engine) {
+        Log.v(TAG, "setStorageEngine: " + engine);
+        Preferences preferences = new Preferences(context);
+        // pin the engine holding the queue before the selection moves away from it
+        preferences.saveQueueEngine(preferences.getQueueEngine());
+        preferences.saveStorageEngine(engine);
     }
 
     public static void setNonRecurringWwanBlackoutStartTime(Context context, long startTimeUtc) {
@@ -114,6 +257,31 @@ public class StoreService extends WakefulService {
         return result;
     }
 
+    /**
+     * Number of queued messages. It is kept up to date by the store, which stays open between
+     * calls, so this is cheap enough to poll.
+     */
+    public static long getQueueDepth(Context context) {
+        IMessageStore repo = MessageStores.openHeld(context);
+        try {
+            return repo.getAvailableMessagesCount();
+        } finally {
+            repo.close();
+        }
+    }
+
+    /**
+     * Number of queued messages for the url.
+     */
+    public static long getQueueDepth(Context context, URI url) {
+        IMessageStore repo = MessageStores.openHeld(context);
+        try {
+            return repo.getAvailableMessagesCount(url.toString());
+        } finally {
+            repo.close();
+        }
+    }
+
     public static void resetStorageSizeLimit(Context context) {
         Log.v(TAG, "resetStorageSizeLimit");
         Preferences preferences = new Preferences(context);
@@ -133,29 +301,117 @@ public class StoreService extends WakefulService {
     protected void processIntent(Intent intent) {
         Log.v(TAG, "onHandleIntent");
 
-        Message message = (Message)intent.getSerializableExtra(MESSAGE);
-        if(message != null) {
-            this.insert(message);
+        try {
+            Message message = (Message)intent.getSerializableExtra(MESSAGE);
+            if(message != null) {
+                this.insert(message);
+            }
+        } finally {
+            if (this.pendingIntents.decrementAndGet() <= 0) {
+                // end of the burst: commit the staged messages here, on the intent thread
+                this.flush();
+            }
         }
     }
 
     private void insert(Message message) {
         Log.v(TAG, "insert");
 
-        long limit = getStorageSizeLimit(this);
-        Log.v(TAG, "insert, getStorageSizeLimit: " + limit);
+        if (message.isHighPriority() || !this.preferences.getWriteBuffering()) {
+            // staged messages go first, to keep the queue order
+            this.flush();
+            try {
+                this.store(Collections.singletonList(message));
+            } finally {
+                this.deleteSpillFiles(Collections.singletonList(message));
+            }
+            ForwardService.start(this);
+            return;
+        }
+
+        if (this.writeBuffer.isFull()) {
+            this.flushAll();
+        }
+        if (this.writeBuffer.add(message, System.currentTimeMillis())) {
+            this.flush();
+        }
+    }
 
+    /**
+     * Commits the staged messages in one transaction. A batch that failed to commit stays
+     * staged for the next flush; after {@value #MAX_FLUSH_ATTEMPTS} failures in a row it is
+     * split and stored message by message, dropping the messages that still fail, so that one
+     * bad message cannot hold back the ones enqueued after it. Runs on the intent thread, and
+     * in {@link #onDestroy} for what a failed flush left behind.
+     */
+    protected synchronized void flush() {
+        List<Message> staged = this.writeBuffer.staged();
+        if (staged.isEmpty()) {
+            return;
+        }
+
+        Log.v(TAG, "flush, messages: " + staged.size());
         try {
-            if (limit == -1) {
-                this.repository.insert(message);
+            this.store(staged);
+        } catch (RuntimeException e) {
+            this.failedFlushes++;
+            if (this.failedFlushes < MAX_FLUSH_ATTEMPTS) {
+                Log.w(TAG, "flush, attempt " + this.failedFlushes + " failed, keeping " + staged.size() + " messages", e);
+                return;
+            }
+            Log.w(TAG, "flush, storing " + staged.size() + " messages one by one after " + this.failedFlushes + " failed attempts", e);
+            this.storeEach(staged);
+        }
+        this.failedFlushes = 0;
+        this.deleteSpillFiles(staged);
+        this.writeBuffer.discard(staged.size());
+        ForwardService.start(this);
+    }
+
+    /**
+     * Flushes until the buffer is empty, which takes at most {@value #MAX_FLUSH_ATTEMPTS} attempts.
+     */
+    private synchronized void flushAll() {
+        while (this.writeBuffer.size() > 0) {
+            this.flush();
+        }
+    }
+
+    /**
+     * The store keeps a copy of a spilled body, so the spill file goes once the message is stored
+     * or dropped.
+     */
+    private void deleteSpillFiles(List<Message> messages) {
+        File directory = this.getDir(SPILL_DIRECTORY, Context.MODE_PRIVATE);
+        for (Message message : messages) {
+            File file = message.getBodyFile();
+            if (file != null && directory.equals(file.getParentFile()) && !file.delete()) {
+                Log.w(TAG, "deleteSpillFiles, cannot delete " + file);
             }
-            else {
-                this.repository.insert(message, getStorageSizeLimit(this));
+        }
+    }
+
+    private void storeEach(List<Message> messages) {
+        for (Message message : messages) {
+            try {
+                this.store(Collections.singletonList(message));
+            } catch (RuntimeException e) {
+                Log.e(TAG, "storeEach, dropping a message that cannot be stored", e);
             }
+        }
+    }
 
-            ForwardService.start(this);
-        } finally {
-            this.repository.close();
+    private void store(List<Message> messages) {
+        long limit = getStorageSizeLimit(this);
+        Log.v(TAG, "store, getStorageSizeLimit: " + limit);
+
+        this.repository.setBodyCompression(this.preferences.getBodyCompression());
+        if (messages.size() == 1 && limit == -1) {
+            this.repository.insert(messages.get(0));
+        } else if (messages.size() == 1) {
+            this.repository.insert(messages.get(0), limit);
+        } else {
+            this.repository.insertAll(messages, limit);
         }
     }
 }
@@ -0,0 +1,86 @@
+package it.sii.reyna.services;
+
+import it.sii.reyna.system.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded ring buffer staging enqueued messages in memory, so that they can be committed
+ * to the repository in one transaction instead of one per message. Messages stay in the
+ * buffer until {@link #discard} confirms that they were stored, so a failed flush loses nothing.
+ */
+public class WriteBuffer {
+
+    private final Message[] ring;
+
+    private final long maxDelayMillis;
+
+    private int head = 0;
+
+    private int count = 0;
+
+    private long oldestStagedAt = 0;
+
+    /**
+     * @param capacity       number of messages after which the buffer is due for a flush
+     * @param maxDelayMillis how long the oldest staged message may wait before the buffer is due
+     */
+    public WriteBuffer(int capacity, long maxDelayMillis) {
+        this.ring = new Message[Math.max(capacity, 1)];
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Stages the message and returns whether the buffer is now due for a flush.
+     *
+     * @throws IllegalStateException if the buffer is full; flush it when it is due
+     */
+    public synchronized boolean add(Message message, long now) {
+        if (this.count == this.ring.length) {
+            throw new IllegalStateException("Write buffer full");
+        }
+
+        if (this.count == 0) {
+            this.oldestStagedAt = now;
+        }
+        this.ring[(this.head + this.count) % this.ring.length] = message;
+        this.count++;
+        return this.isDue(now);
+    }
+
+    public synchronized boolean isDue(long now) {
+        return this.count == this.ring.length || (this.count > 0 && now - this.oldestStagedAt >= this.maxDelayMillis);
+    }
+
+    public synchronized boolean isFull() {
+        return this.count == this.ring.length;
+    }
+
+    public synchronized int size() {
+        return this.count;
+    }
+
+    /**
+     * Returns the staged messages, oldest first, without removing them.
+     */
+    public synchronized List<Message> staged() {
+        List<Message> messages = new ArrayList<Message>(this.count);
+        for (int i = 0; i < this.count; i++) {
+            messages.add(this.ring[(this.head + i) % this.ring.length]);
+        }
+        return messages;
+    }
+
+    /**
+     * Removes the {@code stored} oldest messages, once they have been committed.
+     */
+    public synchronized void discard(int stored) {
+        stored = Math.min(stored, this.count);
+        for (int i = 0; i < stored; i++) {
+            this.ring[(this.head + i) % this.ring.length] = null;
+        }
+        this.head = (this.head + stored) % this.ring.length;
+        this.count -= stored;
+    }
+}
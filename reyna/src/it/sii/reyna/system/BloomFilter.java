@@ -0,0 +1,55 @@
+package it.sii.reyna.system;
+
+/**
+ * Fixed-size Bloom filter over strings. {@link #mightContain} never returns false for a
+ * string that was added; it may return true for one that was not, so a positive answer
+ * has to be confirmed elsewhere. Strings cannot be removed.
+ */
+public class BloomFilter {
+
+    private final long[] bits;
+
+    private final int hashes;
+
+    /**
+     * @param bitCount size of the filter, rounded up to a multiple of 64
+     * @param hashes   number of bits set per string
+     */
+    public BloomFilter(int bitCount, int hashes) {
+        this.bits = new long[Math.max(1, (bitCount + 63) / 64)];
+        this.hashes = hashes;
+    }
+
+    public synchronized void add(String value) {
+        long size = this.bits.length * 64L;
+        int h1 = value.hashCode();
+        int h2 = secondHash(value);
+        for (int i = 0; i < this.hashes; i++) {
+            int bit = (int) (((h1 + (long) i * h2) & Long.MAX_VALUE) % size);
+            this.bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    public synchronized boolean mightContain(String value) {
+        long size = this.bits.length * 64L;
+        int h1 = value.hashCode();
+        int h2 = secondHash(value);
+        for (int i = 0; i < this.hashes; i++) {
+            int bit = (int) (((h1 + (long) i * h2) & Long.MAX_VALUE) % size);
+            if ((this.bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // FNV-1a, independent enough from String.hashCode for double hashing
+    private static int secondHash(String value) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x01000193;
+        }
+        return hash | 1;
+    }
+}
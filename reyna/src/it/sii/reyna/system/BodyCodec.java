@@ -0,0 +1,130 @@
+package it.sii.reyna.system;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * At-rest encoding of message bodies. The codec marker is stored next to the body
+ * so that rows written with different settings can be read back side by side.
+ */
+public final class BodyCodec {
+
+    public static final int PLAIN = 0;
+
+    public static final int DEFLATE = 1;
+
+    // the body column holds the name of a file in the BodyFileStore
+    public static final int FILE = 2;
+
+    // raw bytes of a binary message
+    public static final int BINARY = 3;
+
+    // same as FILE, for a binary message
+    public static final int BINARY_FILE = 4;
+
+    public static boolean isFile(int codec) {
+        return codec == FILE || codec == BINARY_FILE;
+    }
+
+    // below this size the deflate header and dictionary overhead eat most of the gain
+    private static final int MINIMUM_COMPRESSIBLE_SIZE = 256;
+
+    private static final String CHARSET = "UTF-8";
+
+    private BodyCodec() {
+    }
+
+    /**
+     * Returns the deflated UTF-8 body, or null when the body is too small or does not
+     * get any smaller, in which case it should be stored as plain text.
+     */
+    public static byte[] deflate(String body) {
+        if (body == null || body.length() < MINIMUM_COMPRESSIBLE_SIZE) {
+            return null;
+        }
+
+        byte[] input = toBytes(body);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+                if (out.size() >= input.length) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static String inflate(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated body data");
+                }
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), CHARSET);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed body data", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Number of bytes the body takes as UTF-8 text, computed without encoding it.
+     */
+    public static long utf8Length(String body) {
+        if (body == null) {
+            return 0;
+        }
+
+        long length = 0;
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < body.length() && Character.isLowSurrogate(body.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static byte[] toBytes(String value) {
+        try {
+            return value.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package it.sii.reyna.system;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Keeps message bodies that are too large for a database row as files in a private
+ * directory. Text bodies are written as UTF-8 so that they can be streamed to the socket as-is.
+ */
+public class BodyFileStore {
+
+    private static final String SUFFIX = ".body";
+
+    private final File directory;
+
+    public BodyFileStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Writes the body to a new file and returns its name.
+     */
+    public String write(String body) throws IOException {
+        return this.write(body.getBytes("UTF-8"));
+    }
+
+    /**
+     * Writes the raw body to a new file and returns its name.
+     */
+    public String write(byte[] body) throws IOException {
+        File file = this.newFile();
+        OutputStream out = new FileOutputStream(file);
+        boolean written = false;
+        try {
+            out.write(body);
+            written = true;
+        } finally {
+            close(out, file, written);
+        }
+        return file.getName();
+    }
+
+    /**
+     * Copies the body held in another file to a new file, without reading it into memory, and
+     * returns its name.
+     */
+    public String copy(File body) throws IOException {
+        InputStream in = new FileInputStream(body);
+        try {
+            File file = this.newFile();
+            OutputStream out = new FileOutputStream(file);
+            boolean written = false;
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                written = true;
+            } finally {
+                close(out, file, written);
+            }
+            return file.getName();
+        } finally {
+            in.close();
+        }
+    }
+
+    public File get(String name) {
+        return new File(this.directory, name);
+    }
+
+    public boolean delete(String name) {
+        File file = this.get(name);
+        return !file.exists() || file.delete();
+    }
+
+    /**
+     * Deletes the files last modified before the given time.
+     */
+    public void deleteOlderThan(long time) {
+        File[] files = this.directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX) && file.lastModified() < time) {
+                file.delete();
+            }
+        }
+    }
+
+    private File newFile() throws IOException {
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Cannot create " + this.directory);
+        }
+        return new File(this.directory, UUID.randomUUID().toString() + SUFFIX);
+    }
+
+    private static void close(OutputStream out, File file, boolean written) throws IOException {
+        try {
+            out.close();
+        } finally {
+            if (!written) {
+                file.delete();
+            }
+        }
+    }
+}
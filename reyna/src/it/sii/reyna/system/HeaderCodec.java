@@ -0,0 +1,179 @@
+package it.sii.reyna.system;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs message headers into a single blob: a varint pair count followed by
+ * length-prefixed UTF-8 keys and values. A length of zero marks a null string,
+ * any other length is the byte count plus one.
+ * <p>
+ * With a {@link Dictionary}, each header is instead a varint reference: a dictionary id, or
+ * zero followed by the key and value inline for a header the dictionary does not hold.
+ */
+public final class HeaderCodec {
+
+    /**
+     * Header pairs stored once and referenced by id. Ids start at 1.
+     */
+    public interface Dictionary {
+
+        /**
+         * Returns the id of the header, adding it if needed, or 0 to keep it inline.
+         */
+        int idOf(Header header);
+
+        /**
+         * Returns the header with the id. The same instance may be returned to every caller.
+         */
+        Header headerOf(int id);
+    }
+
+    private static final String CHARSET = "UTF-8";
+
+    private HeaderCodec() {
+    }
+
+    public static byte[] encode(List<Header> headers) {
+        if (headers == null || headers.isEmpty()) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * headers.size());
+        writeVarint(out, headers.size());
+        for (Header header : headers) {
+            writeString(out, header.getKey());
+            writeString(out, header.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    public static List<Header> decode(byte[] data) {
+        List<Header> headers = new ArrayList<Header>();
+        if (data == null || data.length == 0) {
+            return headers;
+        }
+
+        int[] position = new int[]{0};
+        int count = readVarint(data, position);
+        for (int i = 0; i < count; i++) {
+            String key = readString(data, position);
+            String value = readString(data, position);
+            headers.add(new Header(key, value));
+        }
+        return headers;
+    }
+
+    public static byte[] encode(List<Header> headers, Dictionary dictionary) {
+        if (headers == null || headers.isEmpty()) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4 * headers.size());
+        writeVarint(out, headers.size());
+        for (Header header : headers) {
+            int id = dictionary.idOf(header);
+            writeVarint(out, id);
+            if (id == 0) {
+                writeString(out, header.getKey());
+                writeString(out, header.getValue());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns a new list, holding the dictionary's own instances of the referenced headers.
+     */
+    public static List<Header> decode(byte[] data, Dictionary dictionary) {
+        if (data == null || data.length == 0) {
+            return new ArrayList<Header>();
+        }
+
+        int[] position = new int[]{0};
+        int count = readVarint(data, position);
+        List<Header> headers = new ArrayList<Header>(count);
+        for (int i = 0; i < count; i++) {
+            int id = readVarint(data, position);
+            if (id != 0) {
+                headers.add(dictionary.headerOf(id));
+            } else {
+                String key = readString(data, position);
+                String value = readString(data, position);
+                headers.add(new Header(key, value));
+            }
+        }
+        return headers;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+
+        byte[] bytes = toBytes(value);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(byte[] data, int[] position) {
+        int length = readVarint(data, position);
+        if (length == 0) {
+            return null;
+        }
+
+        length--;
+        if (position[0] + length > data.length) {
+            throw new IllegalArgumentException("Truncated header data");
+        }
+
+        String value = fromBytes(data, position[0], length);
+        position[0] += length;
+        return value;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] data, int[] position) {
+        int result = 0;
+        int shift = 0;
+        while (shift < 32) {
+            if (position[0] >= data.length) {
+                throw new IllegalArgumentException("Truncated header data");
+            }
+
+            byte b = data[position[0]++];
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+        }
+        throw new IllegalArgumentException("Malformed header data");
+    }
+
+    private static byte[] toBytes(String value) {
+        try {
+            return value.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String fromBytes(byte[] data, int offset, int length) {
+        try {
+            return new String(data, offset, length, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
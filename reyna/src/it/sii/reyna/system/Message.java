@@ -1,28 +1,65 @@
 package it.sii.reyna.system;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
 public class Message implements Serializable {
     private static final long serialVersionUID = 6230786319646630263L;
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final int PRIORITY_NORMAL = 0;
+
+    // high priority messages are sent before the rest of the queue, without pausing between them
+    public static final int PRIORITY_HIGH = 10;
+
     private Long id;
 
     private String url;
 
     private String body;
 
+    private byte[] binaryBody;
+
+    private boolean binary;
+
+    private File bodyFile;
+
     private String username;
 
     private String password;
 
     private List<Header> headers;
 
+    private byte[] encodedHeaders;
+
+    // the dictionary stays behind, so its references are resolved before the message is serialized
+    private transient HeaderCodec.Dictionary headerDictionary;
+
     private Integer numberOfTries;
 
+    private int priority = PRIORITY_NORMAL;
+
+    private Long expiresAt;
+
+    private String idempotencyKey;
+
+    private String coalesceKey;
+
+    private long storedSize = -1;
+
+    private long credentialId;
+
     public Message(URI uri, String body) {
         this(null, uri, body, null, null, null);
     }
@@ -31,6 +68,25 @@ public class Message implements Serializable {
         this(null, uri, body, username, password, null);
     }
 
+    /**
+     * Creates a message with a binary body, which is stored and posted as raw bytes. A factory
+     * rather than a constructor, so that {@code new Message(uri, null)} stays unambiguous.
+     */
+    public static Message binary(URI uri, byte[] body) {
+        return binary(null, uri, body, null, null, null);
+    }
+
+    public static Message binary(URI uri, byte[] body, String username, String password) {
+        return binary(null, uri, body, username, password, null);
+    }
+
+    public static Message binary(Long id, URI uri, byte[] body, String username, String password, List<Header> headers) {
+        Message message = new Message(id, uri, (String) null, username, password, headers);
+        message.binaryBody = body;
+        message.binary = true;
+        return message;
+    }
+
     public Message(Long id, URI uri, String body, String username, String password, List<Header> headers) {
 
         this.id = id;
@@ -62,13 +118,72 @@ public class Message implements Serializable {
     }
 
     public void addHeader(Header header) {
-        this.headers.add(header);
+        this.getHeaders().add(header);
     }
 
+    /**
+     * Returns the text body, or null for a binary message. For a body kept in a file this
+     * reads the whole file, so senders should check {@link #getBodyFile()} first and stream it instead.
+     */
     public String getBody() {
+        if (this.binary) {
+            return null;
+        }
+        if (this.body == null && this.bodyFile != null) {
+            return new String(readBodyFile(this.bodyFile), UTF_8);
+        }
         return this.body;
     }
 
+    /**
+     * Returns the raw body of a binary message, or null for a text message.
+     */
+    public byte[] getBinaryBody() {
+        if (!this.binary) {
+            return null;
+        }
+        if (this.binaryBody == null && this.bodyFile != null) {
+            return readBodyFile(this.bodyFile);
+        }
+        return this.binaryBody;
+    }
+
+    public boolean isBinary() {
+        return this.binary;
+    }
+
+    /**
+     * Returns the file holding the body when it was too large to be kept in the database, or null.
+     * Text bodies are stored in it as UTF-8.
+     */
+    public File getBodyFile() {
+        return this.bodyFile;
+    }
+
+    public void setBodyFile(File bodyFile) {
+        this.bodyFile = bodyFile;
+        this.body = null;
+        this.binaryBody = null;
+    }
+
+    /**
+     * Returns a copy of the message with its body in the file instead of in memory. The file must
+     * hold the body as {@link #getBodyFile()} describes.
+     */
+    public Message withBodyFile(File bodyFile) {
+        Message message = this.binary
+                ? binary(this.id, this.getURI(), null, this.username, this.password, null)
+                : new Message(this.id, this.getURI(), null, this.username, this.password, null);
+        message.setBodyFile(bodyFile);
+        message.headers = new ArrayList<Header>(this.getHeaders());
+        message.numberOfTries = this.numberOfTries;
+        message.priority = this.priority;
+        message.expiresAt = this.expiresAt;
+        message.idempotencyKey = this.idempotencyKey;
+        message.coalesceKey = this.coalesceKey;
+        return message;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -86,7 +201,43 @@ public class Message implements Serializable {
     }
 
     public List<Header> getHeaders() {
-        return headers;
+        if (this.headers == null) {
+            this.headers = this.headerDictionary != null
+                    ? HeaderCodec.decode(this.encodedHeaders, this.headerDictionary)
+                    : HeaderCodec.decode(this.encodedHeaders);
+            this.encodedHeaders = null;
+            this.headerDictionary = null;
+        }
+        return this.headers;
+    }
+
+    /**
+     * Replaces the headers with their {@link HeaderCodec} encoding, which is only
+     * decoded the first time the headers are accessed.
+     */
+    public void setEncodedHeaders(byte[] encodedHeaders) {
+        this.setEncodedHeaders(encodedHeaders, null);
+    }
+
+    /**
+     * Replaces the headers with their {@link HeaderCodec} encoding against the dictionary, whose
+     * references are only resolved the first time the headers are accessed.
+     */
+    public void setEncodedHeaders(byte[] encodedHeaders, HeaderCodec.Dictionary dictionary) {
+        this.encodedHeaders = encodedHeaders;
+        this.headerDictionary = dictionary;
+        this.headers = null;
+    }
+
+    /**
+     * Returns the plain {@link HeaderCodec} encoding of the headers, without decoding them if they
+     * were never accessed and are not held as dictionary references.
+     */
+    public byte[] getEncodedHeaders() {
+        if (this.headers == null && this.headerDictionary == null) {
+            return this.encodedHeaders;
+        }
+        return HeaderCodec.encode(this.getHeaders());
     }
 
     public Integer getNumberOfTries() {
@@ -96,4 +247,117 @@ public class Message implements Serializable {
     public void setNumberOfTries(Integer numberOfTries) {
         this.numberOfTries = numberOfTries;
     }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Messages are sent by descending priority, then in the order they were queued.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public boolean isHighPriority() {
+        return this.priority >= PRIORITY_HIGH;
+    }
+
+    public Long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Sets when the message stops being worth sending, in milliseconds since the epoch.
+     * Expired messages are dropped without being sent; null, the default, never expires.
+     */
+    public void setExpiresAt(Long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Makes the message expire {@code timeToLive} milliseconds from now.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.expiresAt = System.currentTimeMillis() + timeToLive;
+    }
+
+    public boolean isExpired(long now) {
+        return this.expiresAt != null && this.expiresAt <= now;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    /**
+     * Sets a key identifying the logical message. A message is not queued again while another
+     * one with the same key is still queued, and the key is sent in the Idempotency-Key header
+     * so that servers can recognise retries.
+     */
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    /**
+     * Sets a key for state-like messages of which only the latest value matters: queuing the
+     * message replaces any still queued message with the same key.
+     */
+    public void setCoalesceKey(String coalesceKey) {
+        this.coalesceKey = coalesceKey;
+    }
+
+    /**
+     * Bytes the message counts for in the queue size of the store it was read from, -1 for a
+     * message that was not read from a store.
+     */
+    public long getStoredSize() {
+        return storedSize;
+    }
+
+    public void setStoredSize(long storedSize) {
+        this.storedSize = storedSize;
+    }
+
+    /**
+     * Id of the stored credentials of the message in the store it was read from, 0 for a message
+     * without credentials or from a store that does not number them.
+     */
+    public long getCredentialId() {
+        return credentialId;
+    }
+
+    public void setCredentialId(long credentialId) {
+        this.credentialId = credentialId;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (this.headerDictionary != null) {
+            this.getHeaders();
+        }
+        out.defaultWriteObject();
+    }
+
+    private static byte[] readBodyFile(File file) {
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(file.length(), Integer.MAX_VALUE));
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read body file " + file, e);
+        }
+    }
 }
@@ -4,6 +4,7 @@ import android.app.AlarmManager;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.text.TextUtils;
+import it.sii.reyna.MessageStores;
 import it.sii.reyna.blackout.Time;
 import it.sii.reyna.blackout.TimeRange;
 
@@ -25,6 +26,10 @@ public class Preferences {
     private final String BATCH_UPLOAD_INTERVAL = "BATCH_UPLOAD_INTERVAL";
     private final String WWAN_BLACKOUT_START = "WWAN_BLACKOUT_START";
     private final String WWAN_BLACKOUT_END = "WWAN_BLACKOUT_END";
+    private final String BODY_COMPRESSION = "BODY_COMPRESSION";
+    private final String WRITE_BUFFERING = "WRITE_BUFFERING";
+    private final String STORAGE_ENGINE = "STORAGE_ENGINE";
+    private final String QUEUE_ENGINE = "QUEUE_ENGINE";
 
     public Preferences(Context context) {
         this.context = context;
@@ -148,6 +153,41 @@ public class Preferences {
         return this.getLong(BATCH_UPLOAD_INTERVAL, AlarmManager.INTERVAL_HALF_DAY / 2);
     }
 
+    public void saveBodyCompression(boolean value) {
+        this.putBoolean(BODY_COMPRESSION, value);
+    }
+
+    public boolean getBodyCompression() {
+        return this.getBoolean(BODY_COMPRESSION, true);
+    }
+
+    public void saveWriteBuffering(boolean value) {
+        this.putBoolean(WRITE_BUFFERING, value);
+    }
+
+    public boolean getWriteBuffering() {
+        return this.getBoolean(WRITE_BUFFERING, true);
+    }
+
+    public void saveStorageEngine(int value) {
+        this.putInt(STORAGE_ENGINE, value);
+    }
+
+    public int getStorageEngine() {
+        return this.getInt(STORAGE_ENGINE, MessageStores.SQLITE);
+    }
+
+    public void saveQueueEngine(int value) {
+        this.putInt(QUEUE_ENGINE, value);
+    }
+
+    /**
+     * The engine holding the queued messages, which lags behind the selected one until they are moved.
+     */
+    public int getQueueEngine() {
+        return this.getInt(QUEUE_ENGINE, this.getStorageEngine());
+    }
+
     public void putLong(String key, long value) {
         SharedPreferences sp = this.context.getSharedPreferences(Preferences.class.getName(), Context.MODE_PRIVATE);
         SharedPreferences.Editor edit = sp.edit();
@@ -177,6 +217,18 @@ public class Preferences {
         edit.apply();
     }
 
+    private void putInt(String key, int value) {
+        SharedPreferences sp = this.context.getSharedPreferences(Preferences.class.getName(), Context.MODE_PRIVATE);
+        SharedPreferences.Editor edit = sp.edit();
+        edit.putInt(key, value);
+        edit.apply();
+    }
+
+    private int getInt(String key, int defaultValue) {
+        SharedPreferences sp = this.context.getSharedPreferences(Preferences.class.getName(), Context.MODE_PRIVATE);
+        return sp.getInt(key, defaultValue);
+    }
+
     private void putString(String key, String value) {
         SharedPreferences sp = this.context.getSharedPreferences(Preferences.class.getName(), Context.MODE_PRIVATE);
         SharedPreferences.Editor edit = sp.edit();